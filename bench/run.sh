@@ -0,0 +1,18 @@
+#!/bin/sh
+# Build the SML sources with the benchmarks in bench and run them with JMH.
+# Run from the project directory; any arguments are passed to JMH, e.g.
+#
+#   bench/run.sh                       run every benchmark
+#   bench/run.sh MachineBenchmark      run the benchmarks matching a pattern
+#   bench/run.sh -rf json -rff out.json  also write the results as JSON
+#
+# Needs these jars in ../lib alongside lombok.jar:
+#   jmh-core.jar, jmh-generator-annprocess.jar, jopt-simple.jar, commons-math3.jar
+set -e
+LIB=../lib
+CP=$LIB/lombok.jar:$LIB/jmh-core.jar:$LIB/jmh-generator-annprocess.jar:$LIB/jopt-simple.jar:$LIB/commons-math3.jar
+OUT=bin-bench
+rm -rf $OUT
+mkdir -p $OUT
+javac -source 1.8 -target 1.8 -cp $CP -d $OUT $(find src bench -name '*.java' ! -name '*Test.java')
+java -cp $OUT:$CP org.openjdk.jmh.Main "$@"
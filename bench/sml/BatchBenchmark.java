@@ -0,0 +1,78 @@
+package sml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A sweep of the factorial loop over lanes inputs, counting down from 100 to
+ * 100 + lanes - 1, run as one batch and as one Machine per input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BatchBenchmark {
+
+	@Param({ "16", "1024" })
+	public int lanes;
+
+	private Program program;
+	private List<int[]> inputs;
+	private Machine machine;
+
+	@Setup
+	public void createSweep() {
+		Labels labels = new Labels();
+		ArrayList<Instruction> prog = new ArrayList<>();
+		prog.add(new LinInstruction("f0", 21, 1));
+		prog.add(new LinInstruction("f1", 22, 1));
+		prog.add(new MulInstruction("f2", 21, 21, 20));
+		prog.add(new SubInstruction("f3", 20, 20, 22));
+		prog.add(new BnzInstruction("f4", 20, "f2"));
+		for (int i = 0; i != prog.size(); i++) {
+			labels.addLabel("f" + i);
+		}
+		program = new Program("factorial", prog, labels);
+		inputs = new ArrayList<>();
+		for (int lane = 0; lane != lanes; lane++) {
+			int[] registers = new int[21];
+			registers[20] = 100 + lane;
+			inputs.add(registers);
+		}
+		machine = new Machine();
+		machine.setProgram(program);
+		machine.setEngine(Engine.BYTECODE);
+		machine.setOutput(new NullOutputSink());
+	}
+
+	@Benchmark
+	public List<ExecutionResult> batch() {
+		return BatchExecutor.execute(program, inputs);
+	}
+
+	@Benchmark
+	public int machines() {
+		int sum = 0;
+		for (int[] input : inputs) {
+			machine.execute(input);
+			sum += machine.getRegisters().getRegister(21);
+		}
+		return sum;
+	}
+
+}
@@ -0,0 +1,73 @@
+package sml;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The cost of executing a single instruction of each kind on the
+ * interpreter, register access included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InstructionBenchmark {
+
+	private final Instruction add = new AddInstruction("f0", 3, 1, 2);
+	private final Instruction mul = new MulInstruction("f0", 3, 1, 2);
+	private final Instruction div = new DivInstruction("f0", 3, 1, 2);
+	private final Instruction bnz = new BnzInstruction("f0", 1, "f0").resolve(labels("f0"));
+
+	private Machine machine;
+
+	@Setup
+	public void createMachine() {
+		machine = new Machine();
+		machine.setRegisters(new Registers());
+		machine.getRegisters().setRegister(1, 1234567);
+		machine.getRegisters().setRegister(2, 89);
+	}
+
+	@Benchmark
+	public int add() {
+		add.execute(machine);
+		return machine.getRegisters().getRegister(3);
+	}
+
+	@Benchmark
+	public int mul() {
+		mul.execute(machine);
+		return machine.getRegisters().getRegister(3);
+	}
+
+	@Benchmark
+	public int div() {
+		div.execute(machine);
+		return machine.getRegisters().getRegister(3);
+	}
+
+	@Benchmark
+	public int bnz() {
+		bnz.execute(machine);
+		return machine.getPc();
+	}
+
+	private static Labels labels(String label) {
+		Labels labels = new Labels();
+		labels.addLabel(label);
+		return labels;
+	}
+
+}
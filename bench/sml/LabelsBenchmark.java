@@ -0,0 +1,60 @@
+package sml;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Label lookup in programs with an increasing number of labels. The labels
+ * looked up are chosen with a fixed seed so that every run does the same
+ * work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LabelsBenchmark {
+
+	private static final int LOOKUPS = 1024;
+
+	@Param({ "10", "1000", "100000" })
+	public int size;
+
+	private Labels labels;
+	private String[] lookups;
+	private int next;
+
+	@Setup
+	public void createLabels() {
+		labels = new Labels();
+		for (int i = 0; i != size; i++) {
+			labels.addLabel("f" + i);
+		}
+		Random random = new Random(42);
+		lookups = new String[LOOKUPS];
+		for (int i = 0; i != LOOKUPS; i++) {
+			// a new String each time, as the Translator would create
+			lookups[i] = new String("f" + random.nextInt(size));
+		}
+	}
+
+	@Benchmark
+	public int indexOf() {
+		next = (next + 1) & (LOOKUPS - 1);
+		return labels.indexOf(lookups[next]);
+	}
+
+}
@@ -0,0 +1,65 @@
+package sml;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Execution of the factorial loop of code.sml, counting down from n instead
+ * of 6, on each engine. The result overflows for large n, which does not
+ * change the work done.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MachineBenchmark {
+
+	@Param({ "1000", "1000000" })
+	public int n;
+
+	@Param({ "INTERPRETER", "BLOCK", "BYTECODE", "COMPILER" })
+	public Engine engine;
+
+	private Machine machine;
+
+	@Setup
+	public void createMachine() {
+		Labels labels = new Labels();
+		ArrayList<Instruction> prog = new ArrayList<>();
+		prog.add(new LinInstruction("f0", 20, n));
+		prog.add(new LinInstruction("f1", 21, 1));
+		prog.add(new LinInstruction("f2", 22, 1));
+		prog.add(new MulInstruction("f3", 21, 21, 20));
+		prog.add(new SubInstruction("f4", 20, 20, 22));
+		prog.add(new BnzInstruction("f5", 20, "f3"));
+		prog.add(new OutInstruction("f6", 21));
+		for (int i = 0; i != prog.size(); i++) {
+			labels.addLabel("f" + i);
+		}
+		machine = new Machine();
+		machine.setProgram(new Program("factorial", prog, labels));
+		machine.setEngine(engine);
+		machine.setOutput(new NullOutputSink());
+	}
+
+	@Benchmark
+	public int execute() {
+		machine.execute();
+		return machine.getRegisters().getRegister(21);
+	}
+
+}
@@ -0,0 +1,66 @@
+package sml;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Translation of synthetic sources of increasing size, each line using one
+ * of the instructions of code.sml in turn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TranslatorBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int lines;
+
+	private byte[] source;
+
+	@Setup
+	public void generateSource() {
+		String[] bodies = { "lin 20 6", "lin 21 1", "lin 22 1", "mul 21 21 20", "sub 20 20 22", "bnz 20 f3", "out 21" };
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i != lines; i++) {
+			String body = bodies[i % bodies.length];
+			if (i % bodies.length == 5) {
+				// branch to this block's mul
+				body = "bnz 20 f" + (i - 2);
+			}
+			s.append('f').append(i).append(' ').append(body).append('\n');
+		}
+		source = s.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public ArrayList<Instruction> readAndTranslate() {
+		ArrayList<Instruction> prog = new ArrayList<>(lines);
+		if (!new Translator(new ByteArrayInputStream(source)).readAndTranslate(new Labels(), prog)) {
+			throw new IllegalStateException("Benchmark source did not translate");
+		}
+		return prog;
+	}
+
+	@Benchmark
+	public Program translate() {
+		return new Translator(new ByteArrayInputStream(source)).translate();
+	}
+
+}
@@ -6,16 +6,20 @@ package sml;
  */
 public class AddInstruction extends Instruction {
 
-	private int result;
-	private int op1;
-	private int op2;
+	private final int result;
+	private final int op1;
+	private final int op2;
 
 	public AddInstruction(String label, String op) {
-		super(label, op);
+		this(label, op, 0, 0, 0);
 	}
 
 	public AddInstruction(String label, int result, int op1, int op2) {
-		this(label, "add");
+		this(label, "add", result, op1, op2);
+	}
+
+	private AddInstruction(String label, String op, int result, int op1, int op2) {
+		super(label, op);
 		this.result = result;
 		this.op1 = op1;
 		this.op2 = op2;
@@ -23,9 +27,19 @@ public class AddInstruction extends Instruction {
 
 	@Override
 	public void execute(Machine m) {
-		int value1 = getMachineRegister(m, op1);
-		int value2 = getMachineRegister(m, op2);
-		setMachineRegister(m, result, value1 + value2);
+		int[] r = m.getRegisters().getRegisters();
+		r[result] = r[op1] + r[op2];
+	}
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { result, op1, op2 };
+	}
+
+	@Override
+	public boolean encode(Bytecode.Builder code) {
+		code.emit(Bytecode.ADD).emit(result).emit(op1).emit(op2);
+		return true;
 	}
 
 	@Override
@@ -33,4 +47,23 @@ public class AddInstruction extends Instruction {
 		return super.toString() + " register " + op1 + " + register " + op2 + " to register " + result;
 	}
 
+	/*
+	 * Creates add instructions from the operands r s1 s2.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "add";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (!operands.areIntegers(3)) {
+				return null;
+			}
+			return new AddInstruction(label, operands.getInteger(0), operands.getInteger(1), operands.getInteger(2));
+		}
+	}
+
 }
@@ -0,0 +1,317 @@
+package sml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs one program over many sets of initial register values at once. Each
+ * set is a lane, and each register is stored as a column holding its value in
+ * every lane, so an instruction is executed for all lanes by one tight loop
+ * over primitive arrays, which HotSpot can vectorise.
+ *
+ * Lanes go their own way at <code>bnz</code>. Each lane keeps its own pc and
+ * the lanes at the lowest pc always run next, as a group; the rest wait until
+ * the group reaches their pc and joins them. As SML loops close with backward
+ * branches, lanes that leave a loop early wait at its exit for the others.
+ * A lane whose <code>div</code> fails stops, with its registers as they were
+ * before the division, while the other lanes go on.
+ *
+ * The program is run as its optimized Bytecode, so programs with instructions
+ * that have no Bytecode form cannot be batched.
+ */
+public class BatchExecutor {
+
+	private final Bytecode code;
+	private final int[] slots;
+	private final int lanes;
+	private final int[][] registers; // registers[r][lane]
+	private final int[] pcs;
+	private final CollectingOutputSink[] outputs;
+	private final ArithmeticException[] failures;
+
+	// A batch running program on lanes lanes, each with registerCount
+	// registers set to 0.
+	// Throws IllegalArgumentException if the program has no Bytecode form.
+
+	public BatchExecutor(Program program, int registerCount, int lanes) {
+		this.code = program.getOptimizedBytecode(registerCount);
+		if (code == null) {
+			throw new IllegalArgumentException("Program " + program.getName() + " cannot be run as Bytecode");
+		}
+		this.slots = code.getCode();
+		this.lanes = lanes;
+		this.registers = new int[registerCount][lanes];
+		this.pcs = new int[lanes];
+		this.outputs = new CollectingOutputSink[lanes];
+		this.failures = new ArithmeticException[lanes];
+	}
+
+	// = the results of running program once for each of the register values
+	// in inputs, as ExecutionService would give them; a lane whose program
+	// failed has the registers it failed with
+
+	public static List<ExecutionResult> execute(Program program, List<int[]> inputs) {
+		BatchExecutor batch = new BatchExecutor(program, Registers.NUMBEROFREGISTERS, inputs.size());
+		for (int lane = 0; lane != inputs.size(); lane++) {
+			batch.setRegisters(lane, inputs.get(lane));
+		}
+		batch.run();
+		return batch.getResults();
+	}
+
+	// = the number of lanes
+
+	public int getLanes() {
+		return lanes;
+	}
+
+	// Set registers 0..values.length-1 of lane to values.
+
+	public void setRegisters(int lane, int[] values) {
+		for (int r = 0; r != values.length; r++) {
+			registers[r][lane] = values[r];
+		}
+	}
+
+	// = the registers of lane
+
+	public int[] getRegisters(int lane) {
+		int[] values = new int[registers.length];
+		for (int r = 0; r != values.length; r++) {
+			values[r] = registers[r][lane];
+		}
+		return values;
+	}
+
+	// = everything lane printed, one value per line
+
+	public String getOutput(int lane) {
+		return outputs[lane] == null ? "" : outputs[lane].toString();
+	}
+
+	// = the exception that stopped lane, or null if it ran to the end
+
+	public ArithmeticException getFailure(int lane) {
+		return failures[lane];
+	}
+
+	// = the registers and output of every lane
+
+	public List<ExecutionResult> getResults() {
+		List<ExecutionResult> results = new ArrayList<>(lanes);
+		for (int lane = 0; lane != lanes; lane++) {
+			results.add(new ExecutionResult(getRegisters(lane), getOutput(lane)));
+		}
+		return results;
+	}
+
+	// Run every lane from the first instruction to the end.
+
+	public void run() {
+		int size = code.size();
+		int[] group = new int[lanes];
+		while (true) {
+			// the lanes at the lowest pc, and the next pc any other lane is at
+			int pc = size;
+			int next = size;
+			int count = 0;
+			for (int lane = 0; lane != lanes; lane++) {
+				int lanePc = pcs[lane];
+				if (lanePc < pc) {
+					next = pc;
+					pc = lanePc;
+					count = 0;
+				} else if (lanePc > pc && lanePc < next) {
+					next = lanePc;
+				}
+				if (lanePc == pc) {
+					group[count++] = lane;
+				}
+			}
+			if (pc == size) {
+				return;
+			}
+			runGroup(group, count, pc, next);
+		}
+	}
+
+	// Run the count lanes in group, all at pc, until they go different ways,
+	// one of them fails or they reach next, where other lanes are waiting;
+	// then store their pcs.
+
+	private void runGroup(int[] group, int count, int pc, int next) {
+		boolean all = count == lanes;
+		while (pc < next) {
+			int offset = code.offsetOf(pc);
+			int op = slots[offset];
+			switch (op) {
+			case Bytecode.ADD:
+			case Bytecode.SUB:
+			case Bytecode.MUL:
+				arithmetic(op, registers[slots[offset + 1]], registers[slots[offset + 2]], registers[slots[offset + 3]], group,
+						count, all);
+				pc++;
+				break;
+			case Bytecode.DIV:
+				if (divide(offset, group, count, pc)) {
+					return;
+				}
+				pc++;
+				break;
+			case Bytecode.OUT:
+				int[] values = registers[slots[offset + 1]];
+				for (int k = 0; k != count; k++) {
+					int lane = group[k];
+					if (outputs[lane] == null) {
+						outputs[lane] = new CollectingOutputSink();
+					}
+					outputs[lane].write(values[lane]);
+				}
+				pc++;
+				break;
+			case Bytecode.LIN:
+				int[] result = registers[slots[offset + 1]];
+				int value = slots[offset + 2];
+				if (all) {
+					for (int lane = 0; lane != lanes; lane++) {
+						result[lane] = value;
+					}
+				} else {
+					for (int k = 0; k != count; k++) {
+						result[group[k]] = value;
+					}
+				}
+				pc++;
+				break;
+			case Bytecode.ADDI:
+				addImmediate(offset, group, count, all);
+				pc++;
+				break;
+			case Bytecode.ADDI_BNZ:
+				addImmediate(offset, group, count, all);
+				pc = branch(offset, group, count, pc);
+				if (pc == -1) {
+					return;
+				}
+				break;
+			case Bytecode.BNZ:
+				pc = branch(offset, group, count, pc);
+				if (pc == -1) {
+					return;
+				}
+				break;
+			default:
+				throw new IllegalStateException("Invalid opcode " + op + " at instruction " + pc);
+			}
+		}
+		for (int k = 0; k != count; k++) {
+			pcs[group[k]] = pc;
+		}
+	}
+
+	// Set result to a op b in each lane of group (in every lane if all).
+
+	private void arithmetic(int op, int[] result, int[] a, int[] b, int[] group, int count, boolean all) {
+		if (all) {
+			switch (op) {
+			case Bytecode.ADD:
+				for (int lane = 0; lane != lanes; lane++) {
+					result[lane] = a[lane] + b[lane];
+				}
+				break;
+			case Bytecode.SUB:
+				for (int lane = 0; lane != lanes; lane++) {
+					result[lane] = a[lane] - b[lane];
+				}
+				break;
+			default:
+				for (int lane = 0; lane != lanes; lane++) {
+					result[lane] = a[lane] * b[lane];
+				}
+			}
+			return;
+		}
+		for (int k = 0; k != count; k++) {
+			int lane = group[k];
+			switch (op) {
+			case Bytecode.ADD:
+				result[lane] = a[lane] + b[lane];
+				break;
+			case Bytecode.SUB:
+				result[lane] = a[lane] - b[lane];
+				break;
+			default:
+				result[lane] = a[lane] * b[lane];
+			}
+		}
+	}
+
+	private void addImmediate(int offset, int[] group, int count, boolean all) {
+		int[] result = registers[slots[offset + 1]];
+		int[] a = registers[slots[offset + 2]];
+		int value = slots[offset + 3];
+		if (all) {
+			for (int lane = 0; lane != lanes; lane++) {
+				result[lane] = a[lane] + value;
+			}
+		} else {
+			for (int k = 0; k != count; k++) {
+				result[group[k]] = a[group[k]] + value;
+			}
+		}
+	}
+
+	// Branch each lane of group for the branch at offset, which is
+	// instruction pc.
+	// return the instruction the lanes go to together, or -1 if they part,
+	// in which case the pcs of the group are stored
+
+	private int branch(int offset, int[] group, int count, int pc) {
+		int[] tested = registers[slots[offset + 1]];
+		int taken = 0;
+		for (int k = 0; k != count; k++) {
+			if (tested[group[k]] != 1) {
+				taken++;
+			}
+		}
+		int target = code.targetOf(pc);
+		if (taken == 0) {
+			return pc + 1;
+		} else if (taken == count) {
+			return target;
+		}
+		// the lanes part; each goes its own way
+		for (int k = 0; k != count; k++) {
+			pcs[group[k]] = tested[group[k]] != 1 ? target : pc + 1;
+		}
+		return -1;
+	}
+
+	// Divide in each lane of group for the DIV at offset, which is
+	// instruction pc, stopping the lanes that divide by zero.
+	// return "a lane stopped", in which case the pcs of the group are stored
+
+	private boolean divide(int offset, int[] group, int count, int pc) {
+		int[] result = registers[slots[offset + 1]];
+		int[] a = registers[slots[offset + 2]];
+		int[] b = registers[slots[offset + 3]];
+		boolean stopped = false;
+		for (int k = 0; k != count; k++) {
+			int lane = group[k];
+			if (b[lane] == 0) {
+				failures[lane] = new ArithmeticException("/ by zero");
+				stopped = true;
+			} else {
+				result[lane] = a[lane] / b[lane];
+			}
+		}
+		if (stopped) {
+			for (int k = 0; k != count; k++) {
+				int lane = group[k];
+				pcs[lane] = failures[lane] != null ? code.size() : pc + 1;
+			}
+		}
+		return stopped;
+	}
+
+}
@@ -0,0 +1,106 @@
+package sml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BatchExecutorTest {
+
+	private static final int REGISTERS = 32;
+
+	@Test
+	public void runFactorialSweep() {
+		Labels labels = new Labels();
+		List<Instruction> instructions = new ArrayList<>();
+		assertTrue(new Translator("code.sml").readAndTranslate(labels, instructions));
+		// Start from the value already in register 20 rather than 6.
+		instructions.set(0, new LinInstruction("f0", 23, 0));
+		Program program = new Program("factorial", instructions, labels);
+
+		List<int[]> inputs = new ArrayList<>();
+		for (int n = 2; n <= 12; n++) {
+			int[] registers = new int[21];
+			registers[20] = n;
+			inputs.add(registers);
+		}
+		List<ExecutionResult> results = BatchExecutor.execute(program, inputs);
+		int factorial = 1;
+		for (int n = 2; n <= 12; n++) {
+			factorial *= n;
+			assertEquals(factorial, results.get(n - 2).getRegisters()[21]);
+			assertEquals(factorial + System.lineSeparator(), results.get(n - 2).getOutput());
+		}
+	}
+
+	@Test
+	public void stopOnlyLanesThatFail() {
+		List<Instruction> instructions = new ArrayList<>();
+		instructions.add(new DivInstruction("f0", 1, 2, 3));
+		instructions.add(new LinInstruction("f1", 4, 9));
+		Labels labels = new Labels();
+		labels.addLabel("f0");
+		labels.addLabel("f1");
+		BatchExecutor batch = new BatchExecutor(new Program("division", instructions, labels), REGISTERS, 2);
+		batch.setRegisters(0, new int[] { 0, 0, 8, 2 });
+		batch.setRegisters(1, new int[] { 0, 5, 8, 0 });
+		batch.run();
+		assertNull(batch.getFailure(0));
+		assertEquals(4, batch.getRegisters(0)[1]);
+		assertEquals(9, batch.getRegisters(0)[4]);
+		assertEquals("/ by zero", batch.getFailure(1).getMessage());
+		assertEquals(5, batch.getRegisters(1)[1]);
+		assertEquals(0, batch.getRegisters(1)[4]);
+	}
+
+	@Test
+	public void runRandomProgramsLikeMachines() {
+		Random random = new Random(23);
+		for (int n = 0; n != 200; n++) {
+			List<Instruction> instructions = RegisterAllocationTest.randomProgram(random);
+			Labels labels = new Labels();
+			for (Instruction instruction : instructions) {
+				labels.addLabel(instruction.label);
+			}
+			Program program = new Program("random", instructions, labels);
+			int lanes = 1 + random.nextInt(40);
+			BatchExecutor batch = new BatchExecutor(program, REGISTERS, lanes);
+			List<int[]> inputs = new ArrayList<>();
+			for (int lane = 0; lane != lanes; lane++) {
+				int[] initial = new int[REGISTERS];
+				for (int r = 0; r != REGISTERS; r++) {
+					initial[r] = random.nextInt(7) - 2;
+				}
+				inputs.add(initial);
+				batch.setRegisters(lane, initial);
+			}
+			batch.run();
+
+			for (int lane = 0; lane != lanes; lane++) {
+				Machine m = new Machine();
+				CollectingOutputSink output = new CollectingOutputSink();
+				m.setProgram(program);
+				m.setOutput(output);
+				// once the JIT has compiled the division it may throw without a
+				// message, so only whether the lane failed is compared
+				boolean failed = false;
+				try {
+					m.execute(inputs.get(lane));
+				} catch (ArithmeticException e) {
+					failed = true;
+				}
+				String description = program + "lane " + lane;
+				assertEquals(description, failed, batch.getFailure(lane) != null);
+				assertArrayEquals(description, m.getRegisters().getRegisters(), batch.getRegisters(lane));
+				assertEquals(description, output.toString(), batch.getOutput(lane));
+			}
+		}
+	}
+
+}
@@ -7,35 +7,92 @@ package sml;
  */
 public class BnzInstruction extends Instruction {
 
-	private int op1;
-	private String op2;
+	private final int op1;
+	private final String op2;
+	private final int target;
 
 	public BnzInstruction(String l, String op) {
-		super(l, op);
+		this(l, op, 0, null, -1);
 	}
 
 	public BnzInstruction(String label, int op1, String op2) {
-		this(label, "bnz");
+		this(label, "bnz", op1, op2, -1);
+	}
+
+	private BnzInstruction(String label, String op, int op1, String op2, int target) {
+		super(label, op);
 		this.op1 = op1;
 		this.op2 = op2;
+		this.target = target;
+	}
+
+	// = this branch bound to the index of its label in labels, or null if
+	// the label is not defined there
+
+	public BnzInstruction resolve(Labels labels) {
+		int index = labels.indexOf(op2);
+		return index == -1 ? null : new BnzInstruction(label, opcode, op1, op2, index);
 	}
 
+	// Execute this instruction on machine m.
+	// Throws IllegalStateException if the branch has not been resolved.
+
 	@Override
 	public void execute(Machine m) {
-		int value1 = getMachineRegister(m, op1);
-		if (value1 != 1) {
-			int pc = m.getLabels().indexOf(op2);
-			if (pc == -1) {
-				System.err.format("Invalid label '%s'%n", value1);
-				return;
-			}
-			m.setPc(pc);
+		if (target == -1) {
+			throw new IllegalStateException("Unresolved label '" + op2 + "' in " + label);
+		}
+		if (m.getRegisters().getRegisters()[op1] != 1) {
+			m.setPc(target);
 		}
 	}
-	
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { op1 };
+	}
+
+	public String getBranchLabel() {
+		return op2;
+	}
+
+	public int getTarget() {
+		return target;
+	}
+
+	@Override
+	public int getBranchTarget() {
+		return target;
+	}
+
+	@Override
+	public boolean encode(Bytecode.Builder code) {
+		code.emit(Bytecode.BNZ).emit(op1).emit(target);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return super.toString() + " if register " + op1 + " is not zero jump to " + op2;
 	}
 
+	/*
+	 * Creates bnz instructions from the operands s1 L2.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "bnz";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (operands.size() != 2 || !operands.isInteger(0) || operands.isInteger(1)) {
+				return null;
+			}
+			return new BnzInstruction(label, operands.getInteger(0), operands.getString(1));
+		}
+	}
+
 }
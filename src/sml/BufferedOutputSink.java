@@ -0,0 +1,113 @@
+package sml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/*
+ * An OutputSink that formats values straight into a byte buffer and writes
+ * the buffer to a stream when it is full or flushed, so a program printing
+ * in a loop costs one write per buffer rather than a synchronized println
+ * per value.
+ */
+public class BufferedOutputSink implements OutputSink {
+
+	private static final int DEFAULT_SIZE = 8192;
+
+	// the longest a value and its line separator can be
+
+	private static final int MAX_LINE = 20 + 2;
+
+	private static final byte[] SEPARATOR = System.lineSeparator().getBytes();
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int count;
+	private long position;
+
+	// Constructor: a sink writing to out through a buffer of the default size
+
+	public BufferedOutputSink(OutputStream out) {
+		this(out, DEFAULT_SIZE);
+	}
+
+	// Constructor: a sink writing to out through a buffer of size bytes
+
+	public BufferedOutputSink(OutputStream out, int size) {
+		this.out = out;
+		this.buffer = new byte[Math.max(size, MAX_LINE)];
+	}
+
+	@Override
+	public void write(int value) {
+		write((long) value);
+	}
+
+	@Override
+	public void write(long value) {
+		if (count + MAX_LINE > buffer.length) {
+			writeBuffer();
+		}
+		if (value == Long.MIN_VALUE) {
+			// cannot be negated; print it digit by digit
+			for (char c : Long.toString(value).toCharArray()) {
+				buffer[count++] = (byte) c;
+			}
+		} else {
+			if (value < 0) {
+				buffer[count++] = '-';
+				value = -value;
+			}
+			int end = count + digits(value);
+			count = end;
+			do {
+				buffer[--end] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value != 0);
+		}
+		for (byte b : SEPARATOR) {
+			buffer[count++] = b;
+		}
+		position++;
+	}
+
+	@Override
+	public void flush() {
+		writeBuffer();
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public long getPosition() {
+		return position;
+	}
+
+	private void writeBuffer() {
+		if (count == 0) {
+			return;
+		}
+		try {
+			out.write(buffer, 0, count);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		count = 0;
+	}
+
+	// = the number of decimal digits of value
+	// Precondition: value >= 0
+
+	private static int digits(long value) {
+		int n = 1;
+		while (value >= 10) {
+			value /= 10;
+			n++;
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,553 @@
+package sml;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact form of an SML program as a flat array of ints. Each instruction
+ * is stored as its opcode followed by its operands, so the whole program can
+ * be run by a single dispatch loop over local variables instead of a virtual
+ * call per <code>Instruction</code>. Branch operands hold the code offset of
+ * their target rather than a label.
+ */
+public class Bytecode {
+
+	// Opcodes, with their operands in the order they are stored.
+
+	public static final int ADD = 0; // result, op1, op2
+	public static final int SUB = 1; // result, op1, op2
+	public static final int MUL = 2; // result, op1, op2
+	public static final int DIV = 3; // result, op1, op2
+	public static final int OUT = 4; // op1
+	public static final int LIN = 5; // register, value
+	public static final int BNZ = 6; // op1, target
+
+	// Opcodes only produced by Optimizer, which have no Instruction form
+
+	public static final int ADDI = 7; // result, op1, value
+	public static final int ADDI_BNZ = 8; // result, op1, value, target
+
+	// Superinstructions, only produced by Superinstructions and only run by
+	// execute without limits. Each of the arithmetic instructions they fuse
+	// is stored as its opcode (ADD, SUB, MUL or ADDI) and operands.
+
+	public static final int ARITH2 = 9; // arithmetic, arithmetic
+	public static final int ARITH_BNZ = 10; // arithmetic, op1, target
+	public static final int ARITH2_BNZ = 11; // arithmetic, arithmetic, op1, target
+
+	// The number of slots (opcode included) used by each opcode
+
+	private static final int[] LENGTHS = { 4, 4, 4, 4, 2, 3, 3, 4, 5, 9, 7, 11 };
+
+	private final int[] code;
+	private final int[] offsets;
+
+	// This code compiled by JvmCompiler, or its mark that it declined to,
+	// once it has been, so runs after the first neither look it up nor
+	// compile it again
+	private volatile CompiledProgram compiled;
+
+	private Bytecode(int[] code, int[] offsets) {
+		this.code = code;
+		this.offsets = offsets;
+	}
+
+	// Lower prog into bytecode for a machine with registerCount registers.
+	// Returns null if an instruction has no bytecode form, uses a register
+	// outside the machine or branches to an unresolved label.
+
+	public static Bytecode compile(List<Instruction> prog, int registerCount) {
+		Builder builder = new Builder(prog.size());
+		for (int i = 0; i != prog.size(); i++) {
+			builder.startInstruction();
+			if (!prog.get(i).encode(builder)) {
+				return null;
+			}
+		}
+		return builder.build(registerCount);
+	}
+
+	// = the Bytecode whose code is code, or null if code is not a valid
+	// sequence of instructions with every branch targeting one of them
+
+	public static Bytecode wrap(int[] code) {
+		int count = 0;
+		for (int pc = 0; pc < code.length; pc += LENGTHS[code[pc]], count++) {
+			if (code[pc] < 0 || code[pc] >= LENGTHS.length || pc + LENGTHS[code[pc]] > code.length) {
+				return null;
+			}
+		}
+		int[] offsets = new int[count + 1];
+		for (int pc = 0, i = 0; pc < code.length; pc += LENGTHS[code[pc]]) {
+			offsets[i++] = pc;
+		}
+		offsets[count] = code.length;
+		for (int pc = 0; pc < code.length; pc += LENGTHS[code[pc]]) {
+			int slot = targetSlot(code[pc]);
+			if (slot != -1 && (code[pc + slot] == code.length || Arrays.binarySearch(offsets, code[pc + slot]) < 0)) {
+				return null;
+			}
+		}
+		return new Bytecode(code, offsets);
+	}
+
+	CompiledProgram getCompiled() {
+		return compiled;
+	}
+
+	void setCompiled(CompiledProgram compiled) {
+		this.compiled = compiled;
+	}
+
+	// = the number of slots used by an instruction with opcode op
+
+	public static int length(int op) {
+		return LENGTHS[op];
+	}
+
+	// = the slot holding the target of an instruction with opcode op, or -1
+	// if it does not branch
+
+	public static int targetSlot(int op) {
+		switch (op) {
+		case BNZ:
+			return 2;
+		case ADDI_BNZ:
+			return 4;
+		case ARITH_BNZ:
+			return 6;
+		case ARITH2_BNZ:
+			return 10;
+		default:
+			return -1;
+		}
+	}
+
+	// = the number of instructions in the program
+
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	// = the offset in the code of instruction index (index may be size())
+
+	public int offsetOf(int index) {
+		return offsets[index];
+	}
+
+	// = the index of the instruction at code offset offset
+
+	public int indexOf(int offset) {
+		return Arrays.binarySearch(offsets, offset);
+	}
+
+	// = the opcode of instruction index
+
+	public int opcodeOf(int index) {
+		return code[offsets[index]];
+	}
+
+	// = whether instruction index can branch
+
+	public boolean isBranch(int index) {
+		return targetSlot(code[offsets[index]]) != -1;
+	}
+
+	// = the index of the instruction branched to by instruction index, which
+	// must be a branch
+
+	public int targetOf(int index) {
+		int pc = offsets[index];
+		return indexOf(code[pc + targetSlot(code[pc])]);
+	}
+
+	// = whether the code has superinstructions, which only the bytecode
+	// engine runs
+
+	public boolean hasSuperinstructions() {
+		for (int i = 0; i != size(); i++) {
+			if (code[offsets[i]] >= ARITH2) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// = the register written by instruction index, or -1 if it writes none.
+	// Throws IllegalArgumentException if the instruction is a
+	// superinstruction, which can write two.
+
+	public int definedRegister(int index) {
+		int pc = offsets[index];
+		switch (code[pc]) {
+		case OUT:
+		case BNZ:
+			return -1;
+		case ARITH2:
+		case ARITH_BNZ:
+		case ARITH2_BNZ:
+			throw new IllegalArgumentException("Instruction " + index + " is a superinstruction");
+		default:
+			return code[pc + 1];
+		}
+	}
+
+	// = the registers read by instruction index, in operand order.
+	// Throws IllegalArgumentException if the instruction is a
+	// superinstruction.
+
+	public int[] usedRegisters(int index) {
+		int pc = offsets[index];
+		switch (code[pc]) {
+		case LIN:
+			return new int[0];
+		case ARITH2:
+		case ARITH_BNZ:
+		case ARITH2_BNZ:
+			throw new IllegalArgumentException("Instruction " + index + " is a superinstruction");
+		case OUT:
+		case BNZ:
+			return new int[] { code[pc + 1] };
+		case ADDI:
+		case ADDI_BNZ:
+			return new int[] { code[pc + 2] };
+		default:
+			return new int[] { code[pc + 2], code[pc + 3] };
+		}
+	}
+
+	// = whether instruction index can throw an exception, so the registers
+	// must be up to date when it starts
+
+	public boolean canFail(int index) {
+		int op = code[offsets[index]];
+		return op == DIV || op == OUT;
+	}
+
+	// = instruction index as an Instruction, labelled with the label of the
+	// same index in labels (branches are left unresolved)
+
+	public Instruction decode(int index, Labels labels) {
+		int pc = offsets[index];
+		String label = labels.get(index);
+		switch (code[pc]) {
+		case ADD:
+			return new AddInstruction(label, code[pc + 1], code[pc + 2], code[pc + 3]);
+		case SUB:
+			return new SubInstruction(label, code[pc + 1], code[pc + 2], code[pc + 3]);
+		case MUL:
+			return new MulInstruction(label, code[pc + 1], code[pc + 2], code[pc + 3]);
+		case DIV:
+			return new DivInstruction(label, code[pc + 1], code[pc + 2], code[pc + 3]);
+		case OUT:
+			return new OutInstruction(label, code[pc + 1]);
+		case LIN:
+			return new LinInstruction(label, code[pc + 1], code[pc + 2]);
+		case BNZ:
+			return new BnzInstruction(label, code[pc + 1], labels.get(indexOf(code[pc + 2])));
+		case ADDI:
+		case ADDI_BNZ:
+		case ARITH2:
+		case ARITH_BNZ:
+		case ARITH2_BNZ:
+			throw new IllegalStateException("Optimized opcode " + code[pc] + " at offset " + pc + " has no Instruction form");
+		default:
+			throw new IllegalStateException("Invalid opcode " + code[pc] + " at offset " + pc);
+		}
+	}
+
+	// = the code array; callers must not modify it
+
+	public int[] getCode() {
+		return code;
+	}
+
+	// Run the program from its first instruction on registers r, printing
+	// its output to out.
+
+	public void execute(int[] r, OutputSink out) {
+		execute(0, r, out);
+	}
+
+	// Run the program from instruction index on registers r, printing its
+	// output to out.
+
+	public void execute(int index, int[] r, OutputSink out) {
+		final int[] code = this.code;
+		final int end = code.length;
+		int pc = offsets[index];
+		while (pc < end) {
+			switch (code[pc]) {
+			case ADD:
+				r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]];
+				pc += 4;
+				break;
+			case SUB:
+				r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]];
+				pc += 4;
+				break;
+			case MUL:
+				r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]];
+				pc += 4;
+				break;
+			case DIV:
+				r[code[pc + 1]] = r[code[pc + 2]] / r[code[pc + 3]];
+				pc += 4;
+				break;
+			case OUT:
+				out.write(r[code[pc + 1]]);
+				pc += 2;
+				break;
+			case LIN:
+				r[code[pc + 1]] = code[pc + 2];
+				pc += 3;
+				break;
+			case BNZ:
+				pc = r[code[pc + 1]] != 1 ? code[pc + 2] : pc + 3;
+				break;
+			case ADDI:
+				r[code[pc + 1]] = r[code[pc + 2]] + code[pc + 3];
+				pc += 4;
+				break;
+			case ADDI_BNZ:
+				r[code[pc + 1]] = r[code[pc + 2]] + code[pc + 3];
+				pc = r[code[pc + 1]] != 1 ? code[pc + 4] : pc + 5;
+				break;
+			case ARITH2:
+				r[code[pc + 2]] = arithmetic(code[pc + 1], r, code[pc + 3], code[pc + 4]);
+				r[code[pc + 6]] = arithmetic(code[pc + 5], r, code[pc + 7], code[pc + 8]);
+				pc += 9;
+				break;
+			case ARITH_BNZ:
+				r[code[pc + 2]] = arithmetic(code[pc + 1], r, code[pc + 3], code[pc + 4]);
+				pc = r[code[pc + 5]] != 1 ? code[pc + 6] : pc + 7;
+				break;
+			case ARITH2_BNZ:
+				r[code[pc + 2]] = arithmetic(code[pc + 1], r, code[pc + 3], code[pc + 4]);
+				r[code[pc + 6]] = arithmetic(code[pc + 5], r, code[pc + 7], code[pc + 8]);
+				pc = r[code[pc + 9]] != 1 ? code[pc + 10] : pc + 11;
+				break;
+			default:
+				throw new IllegalStateException("Invalid opcode " + code[pc] + " at offset " + pc);
+			}
+		}
+	}
+
+	// = the result of arithmetic opcode op (ADD, SUB, MUL or ADDI) with
+	// operands a and b on registers r
+
+	private static int arithmetic(int op, int[] r, int a, int b) {
+		switch (op) {
+		case ADD:
+			return r[a] + r[b];
+		case SUB:
+			return r[a] - r[b];
+		case MUL:
+			return r[a] * r[b];
+		default:
+			return r[a] + b;
+		}
+	}
+
+	// Run the program like execute(r, out), stopping it when it exceeds
+	// limits, which are checked on backward branches.
+
+	public void execute(int[] r, OutputSink out, ExecutionLimits limits) {
+		execute(0, r, out, limits);
+	}
+
+	// Run the program like execute(index, r, out), stopping it when it
+	// exceeds limits.
+
+	public void execute(int index, int[] r, OutputSink out, ExecutionLimits limits) {
+		final int[] code = this.code;
+		final int end = code.length;
+		final long maxSteps = limits.getMaxSteps();
+		final long deadline = limits.deadline();
+		long steps = 0;
+		int branches = 0;
+		int pc = offsets[index];
+		while (pc < end) {
+			steps++;
+			switch (code[pc]) {
+			case ADD:
+				r[code[pc + 1]] = r[code[pc + 2]] + r[code[pc + 3]];
+				pc += 4;
+				break;
+			case SUB:
+				r[code[pc + 1]] = r[code[pc + 2]] - r[code[pc + 3]];
+				pc += 4;
+				break;
+			case MUL:
+				r[code[pc + 1]] = r[code[pc + 2]] * r[code[pc + 3]];
+				pc += 4;
+				break;
+			case DIV:
+				r[code[pc + 1]] = r[code[pc + 2]] / r[code[pc + 3]];
+				pc += 4;
+				break;
+			case OUT:
+				out.write(r[code[pc + 1]]);
+				pc += 2;
+				break;
+			case LIN:
+				r[code[pc + 1]] = code[pc + 2];
+				pc += 3;
+				break;
+			case BNZ:
+				if (r[code[pc + 1]] == 1) {
+					pc += 3;
+					break;
+				}
+				if (code[pc + 2] <= pc && (steps > maxSteps || (++branches & (ExecutionLimits.CHECK_INTERVAL - 1)) == 0)) {
+					check(limits, steps, deadline, code[pc + 2], r);
+				}
+				pc = code[pc + 2];
+				break;
+			case ADDI:
+				r[code[pc + 1]] = r[code[pc + 2]] + code[pc + 3];
+				pc += 4;
+				break;
+			case ADDI_BNZ:
+				r[code[pc + 1]] = r[code[pc + 2]] + code[pc + 3];
+				if (r[code[pc + 1]] == 1) {
+					pc += 5;
+					break;
+				}
+				if (code[pc + 4] <= pc && (steps > maxSteps || (++branches & (ExecutionLimits.CHECK_INTERVAL - 1)) == 0)) {
+					check(limits, steps, deadline, code[pc + 4], r);
+				}
+				pc = code[pc + 4];
+				break;
+			default:
+				throw new IllegalStateException("Invalid opcode " + code[pc] + " at offset " + pc);
+			}
+		}
+	}
+
+	// Stop the program, about to branch back to target, if it has exceeded
+	// limits.
+
+	private void check(ExecutionLimits limits, long steps, long deadline, int target, int[] r) {
+		ExecutionAbortedException.Reason reason = limits.check(steps, deadline);
+		if (reason != null) {
+			throw new ExecutionAbortedException(reason, indexOf(target), steps, r.clone());
+		}
+	}
+
+	// representation of this instance, one instruction per line
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i != size(); i++) {
+			int offset = offsets[i];
+			s.append(offset).append(':');
+			for (int j = 0; j != length(code[offset]); j++) {
+				s.append(' ').append(code[offset + j]);
+			}
+			s.append('\n');
+		}
+		return s.toString();
+	}
+
+	/*
+	 * Accumulates the slots emitted by each Instruction's encode method.
+	 * Branch targets are emitted as instruction indexes and turned into code
+	 * offsets once every instruction has been placed.
+	 */
+	public static class Builder {
+
+		private int[] code;
+		private int length;
+		private int[] offsets;
+		private int count;
+
+		private Builder(int capacity) {
+			code = new int[4 * capacity + 4];
+			offsets = new int[capacity + 1];
+		}
+
+		private void startInstruction() {
+			offsets[count++] = length;
+		}
+
+		// Append slot to the code of the current instruction.
+
+		public Builder emit(int slot) {
+			if (length == code.length) {
+				code = Arrays.copyOf(code, 2 * length);
+			}
+			code[length++] = slot;
+			return this;
+		}
+
+		private Bytecode build(int registerCount) {
+			offsets[count] = length;
+			int[] code = Arrays.copyOf(this.code, length);
+			for (int i = 0; i != count; i++) {
+				int pc = offsets[i];
+				int op = code[pc];
+				if (op < 0 || op >= LENGTHS.length || pc + LENGTHS[op] != offsets[i + 1]) {
+					return null;
+				}
+				switch (op) {
+				case ADD:
+				case SUB:
+				case MUL:
+				case DIV:
+					if (!isRegister(code[pc + 1], registerCount) || !isRegister(code[pc + 2], registerCount)
+							|| !isRegister(code[pc + 3], registerCount)) {
+						return null;
+					}
+					break;
+				case OUT:
+				case LIN:
+					if (!isRegister(code[pc + 1], registerCount)) {
+						return null;
+					}
+					break;
+				case ADDI:
+					if (!isRegister(code[pc + 1], registerCount) || !isRegister(code[pc + 2], registerCount)) {
+						return null;
+					}
+					break;
+				case ADDI_BNZ:
+					if (!isRegister(code[pc + 1], registerCount) || !isRegister(code[pc + 2], registerCount)
+							|| !resolveTarget(code, pc)) {
+						return null;
+					}
+					break;
+				case BNZ:
+					if (!isRegister(code[pc + 1], registerCount) || !resolveTarget(code, pc)) {
+						return null;
+					}
+					break;
+				default:
+					// superinstructions are not built from Instructions
+					return null;
+				}
+			}
+			return new Bytecode(code, offsets);
+		}
+
+		// Replace the target of the branch at pc in code, an instruction
+		// index, with the offset of that instruction.
+		// return "the target is an instruction"
+
+		private boolean resolveTarget(int[] code, int pc) {
+			int slot = pc + targetSlot(code[pc]);
+			int target = code[slot];
+			if (target < 0 || target >= count) {
+				return false;
+			}
+			code[slot] = offsets[target];
+			return true;
+		}
+
+		private static boolean isRegister(int i, int registerCount) {
+			return i >= 0 && i < registerCount;
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package sml;
+
+import java.util.Arrays;
+
+/*
+ * An OutputSink that keeps every value written to it in memory, for tests
+ * and batch jobs that look at the output after the program has run.
+ */
+public class CollectingOutputSink implements OutputSink {
+
+	private long[] values = new long[16];
+	private int size;
+
+	@Override
+	public void write(int value) {
+		write((long) value);
+	}
+
+	@Override
+	public void write(long value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = value;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public long getPosition() {
+		return size;
+	}
+
+	// = the number of values written
+
+	public int size() {
+		return size;
+	}
+
+	// = the values written, in order
+
+	public long[] getValues() {
+		return Arrays.copyOf(values, size);
+	}
+
+	// Forget every value written so far, going back to position 0.
+
+	public void clear() {
+		size = 0;
+	}
+
+	// = the values written as println would have printed them
+
+	@Override
+	public String toString() {
+		String separator = System.lineSeparator();
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i != size; i++) {
+			s.append(values[i]).append(separator);
+		}
+		return s.toString();
+	}
+
+}
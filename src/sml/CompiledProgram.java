@@ -0,0 +1,14 @@
+package sml;
+
+/*
+ * An SML program compiled to a JVM class by JvmCompiler.
+ */
+public interface CompiledProgram {
+
+	// Run the program from its first instruction on registers r, printing
+	// its output to out and leaving the final register values in r (also
+	// when the program throws).
+
+	void run(int[] r, OutputSink out);
+
+}
@@ -0,0 +1,202 @@
+package sml;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The basic blocks of a program, as Bytecode or as translated Instructions,
+ * and the edges between them. A block is a run of instructions that can only
+ * be entered at its first instruction and only left after its last, so
+ * blocks start at the first instruction, at every branch target and after
+ * every branch.
+ *
+ * Blocks are numbered in program order. Control leaves the program from
+ * the end of the last block. As the only way back to an earlier instruction
+ * is a branch, every loop passes through a loop header: a block entered by
+ * an edge from itself or a later block.
+ */
+public class ControlFlowGraph {
+
+	private final Bytecode code;
+	private final int[] starts; // first instruction of each block, then size
+	private final int[] blocks; // block of each instruction
+	private final int[][] successors;
+	private final int[][] predecessors;
+
+	public ControlFlowGraph(Bytecode code) {
+		this(code, targets(code));
+	}
+
+	// Constructor: the graph of prog, whose branches must be resolved, found
+	// from the targets given by Instruction.getBranchTarget.
+	// Throws IllegalArgumentException if a branch targets no instruction.
+
+	public ControlFlowGraph(List<Instruction> prog) {
+		this(null, targets(prog));
+	}
+
+	private ControlFlowGraph(Bytecode code, int[] targets) {
+		this.code = code;
+		int size = targets.length;
+		boolean[] leaders = new boolean[size + 1];
+		leaders[0] = true;
+		for (int i = 0; i != size; i++) {
+			if (targets[i] != -1) {
+				leaders[targets[i]] = true;
+				leaders[i + 1] = true;
+			}
+		}
+		int count = 0;
+		for (int i = 0; i != size; i++) {
+			if (leaders[i]) {
+				count++;
+			}
+		}
+
+		starts = new int[count + 1];
+		blocks = new int[size];
+		for (int i = 0, block = -1; i != size; i++) {
+			if (leaders[i]) {
+				starts[++block] = i;
+			}
+			blocks[i] = block;
+		}
+		starts[count] = size;
+
+		successors = new int[count][];
+		int[] predecessorCounts = new int[count];
+		for (int block = 0; block != count; block++) {
+			int last = starts[block + 1] - 1;
+			int next = block + 1 < count ? block + 1 : -1;
+			int target = targets[last] != -1 ? blocks[targets[last]] : -1;
+			successors[block] = edges(next, target);
+			for (int successor : successors[block]) {
+				predecessorCounts[successor]++;
+			}
+		}
+		predecessors = new int[count][];
+		for (int block = 0; block != count; block++) {
+			predecessors[block] = new int[predecessorCounts[block]];
+		}
+		Arrays.fill(predecessorCounts, 0);
+		for (int block = 0; block != count; block++) {
+			for (int successor : successors[block]) {
+				predecessors[successor][predecessorCounts[successor]++] = block;
+			}
+		}
+	}
+
+	// = the target of each instruction of code that branches, -1 for the rest
+
+	private static int[] targets(Bytecode code) {
+		int[] targets = new int[code.size()];
+		for (int i = 0; i != targets.length; i++) {
+			targets[i] = code.isBranch(i) ? code.targetOf(i) : -1;
+		}
+		return targets;
+	}
+
+	private static int[] targets(List<Instruction> prog) {
+		int[] targets = new int[prog.size()];
+		for (int i = 0; i != targets.length; i++) {
+			targets[i] = prog.get(i).getBranchTarget();
+			if (targets[i] < -1 || targets[i] >= targets.length) {
+				throw new IllegalArgumentException("Invalid branch target " + targets[i] + " at line " + (i + 1));
+			}
+		}
+		return targets;
+	}
+
+	// = the Bytecode this is the graph of, or null if it was built from
+	// Instructions
+
+	public Bytecode getBytecode() {
+		return code;
+	}
+
+	// = the number of blocks
+
+	public int size() {
+		return starts.length - 1;
+	}
+
+	// = the index of the first instruction of block
+
+	public int first(int block) {
+		return starts[block];
+	}
+
+	// = the index after the last instruction of block
+
+	public int end(int block) {
+		return starts[block + 1];
+	}
+
+	// = the block containing instruction index
+
+	public int blockOf(int index) {
+		return blocks[index];
+	}
+
+	// = the blocks control can pass to from the end of block, the next block
+	// first; callers must not modify the result
+
+	public int[] successors(int block) {
+		return successors[block];
+	}
+
+	// = the blocks control can come from to the start of block, in program
+	// order; callers must not modify the result
+
+	public int[] predecessors(int block) {
+		return predecessors[block];
+	}
+
+	// = whether control can leave the program from the end of block
+
+	public boolean isExit(int block) {
+		return starts[block + 1] == blocks.length;
+	}
+
+	// = whether block is entered by an edge from itself or a later block,
+	// and so starts a loop
+
+	public boolean isLoopHeader(int block) {
+		for (int predecessor : predecessors[block]) {
+			if (predecessor >= block) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// representation of this instance, one block per line
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int block = 0; block != size(); block++) {
+			s.append('B').append(block).append(" [").append(first(block)).append(", ").append(end(block)).append(')');
+			if (isLoopHeader(block)) {
+				s.append(" loop");
+			}
+			s.append(" ->");
+			for (int successor : successors[block]) {
+				s.append(" B").append(successor);
+			}
+			if (isExit(block)) {
+				s.append(" exit");
+			}
+			s.append('\n');
+		}
+		return s.toString();
+	}
+
+	private static int[] edges(int next, int target) {
+		if (next == -1) {
+			return target == -1 ? new int[0] : new int[] { target };
+		}
+		return target == -1 || target == next ? new int[] { next } : new int[] { next, target };
+	}
+
+}
@@ -7,16 +7,20 @@ package sml;
  */
 public class DivInstruction extends Instruction {
 
-	private int result;
-	private int op1;
-	private int op2;
+	private final int result;
+	private final int op1;
+	private final int op2;
 
 	public DivInstruction(String l, String op) {
-		super(l, op);
+		this(l, op, 0, 0, 0);
 	}
 
 	public DivInstruction(String label, int result, int op1, int op2) {
-		this(label, "div");
+		this(label, "div", result, op1, op2);
+	}
+
+	private DivInstruction(String label, String op, int result, int op1, int op2) {
+		super(label, op);
 		this.result = result;
 		this.op1 = op1;
 		this.op2 = op2;
@@ -24,14 +28,43 @@ public class DivInstruction extends Instruction {
 
 	@Override
 	public void execute(Machine m) {
-		int value1 = getMachineRegister(m, op1);
-		int value2 = getMachineRegister(m, op2);
-		setMachineRegister(m, result, value1 / value2);
+		int[] r = m.getRegisters().getRegisters();
+		r[result] = r[op1] / r[op2];
+	}
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { result, op1, op2 };
 	}
 	
+	@Override
+	public boolean encode(Bytecode.Builder code) {
+		code.emit(Bytecode.DIV).emit(result).emit(op1).emit(op2);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return super.toString() + " register " + op1 + " / register " + op2 + " to register " + result;
 	}
 
+	/*
+	 * Creates div instructions from the operands r s1 s2.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "div";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (!operands.areIntegers(3)) {
+				return null;
+			}
+			return new DivInstruction(label, operands.getInteger(0), operands.getInteger(1), operands.getInteger(2));
+		}
+	}
+
 }
@@ -0,0 +1,23 @@
+package sml;
+
+/*
+ * The ways in which a Machine can execute its program.
+ */
+public enum Engine {
+
+	// Call execute on each Instruction object in turn
+	INTERPRETER,
+
+	// Call execute on each Instruction object a basic block at a time,
+	// looking at the pc only at the end of each block
+	BLOCK,
+
+	// Lower the program to Bytecode and run it in a single dispatch loop,
+	// interpreting it instead when it cannot be lowered
+	BYTECODE,
+
+	// Compile the program's Bytecode to a JVM class and run that, using the
+	// BYTECODE engine instead when it cannot be compiled
+	COMPILER
+
+}
@@ -0,0 +1,60 @@
+package sml;
+
+/*
+ * Thrown when a program is stopped because it exceeded one of its
+ * ExecutionLimits, recording where it stopped and its registers then.
+ */
+public class ExecutionAbortedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	/*
+	 * Why a program was stopped.
+	 */
+	public enum Reason {
+		// it executed more instructions than allowed
+		STEP_LIMIT,
+		// it ran past its deadline
+		DEADLINE,
+		// it was cancelled, or its thread was interrupted
+		CANCELLED
+	}
+
+	private final Reason reason;
+	private final int pc;
+	private final long steps;
+	private final int[] registers;
+
+	public ExecutionAbortedException(Reason reason, int pc, long steps, int[] registers) {
+		super(String.format("Execution aborted (%s) before instruction %d after %d instructions", reason, pc, steps));
+		this.reason = reason;
+		this.pc = pc;
+		this.steps = steps;
+		this.registers = registers;
+	}
+
+	// = why the program was stopped
+
+	public Reason getReason() {
+		return reason;
+	}
+
+	// = the index of the instruction the program would have executed next
+
+	public int getPc() {
+		return pc;
+	}
+
+	// = the number of instructions executed before the program was stopped
+
+	public long getSteps() {
+		return steps;
+	}
+
+	// = a copy of the registers when the program was stopped
+
+	public int[] getRegisters() {
+		return registers;
+	}
+
+}
@@ -0,0 +1,82 @@
+package sml;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on a run of a program: the number of instructions it may execute,
+ * how long it may take and whether it has been cancelled. A Machine with
+ * limits checks them each time a program branches backwards, which every
+ * loop does, and stops the program with an ExecutionAbortedException when
+ * one is exceeded; a program that never branches backwards ends within as
+ * many instructions as it has. The clock and cancellation are only looked
+ * at every CHECK_INTERVAL backward branches, so checking costs little more
+ * than counting.
+ *
+ * Interrupting the thread running a program cancels it, so cancelling the
+ * Future of an ExecutionService job stops it. Calling cancel stops every run
+ * using these limits, now and later.
+ */
+public class ExecutionLimits {
+
+	// The number of backward branches between looks at the clock and at
+	// cancellation (a power of 2)
+
+	public static final int CHECK_INTERVAL = 1024;
+
+	private volatile long maxSteps = Long.MAX_VALUE;
+	private volatile long timeoutNanos = Long.MAX_VALUE;
+	private volatile boolean cancelled;
+
+	// = the number of instructions a run may execute
+
+	public long getMaxSteps() {
+		return maxSteps;
+	}
+
+	public void setMaxSteps(long maxSteps) {
+		this.maxSteps = maxSteps;
+	}
+
+	// = how long a run may take, in nanoseconds (Long.MAX_VALUE for no limit)
+
+	public long getTimeoutNanos() {
+		return timeoutNanos;
+	}
+
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutNanos = unit.toNanos(timeout);
+	}
+
+	// Stop every run using these limits at its next check.
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	// = the System.nanoTime() by which a run starting now must end
+
+	long deadline() {
+		return System.nanoTime() + Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+	}
+
+	// = why a run that has executed steps instructions and must end by
+	// deadline should stop, or null if it may go on
+
+	ExecutionAbortedException.Reason check(long steps, long deadline) {
+		if (steps > maxSteps) {
+			return ExecutionAbortedException.Reason.STEP_LIMIT;
+		}
+		if (cancelled || Thread.currentThread().isInterrupted()) {
+			return ExecutionAbortedException.Reason.CANCELLED;
+		}
+		if (timeoutNanos != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+			return ExecutionAbortedException.Reason.DEADLINE;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,220 @@
+package sml;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * What a Machine did while running a program: how many times each
+ * instruction was executed, how often each <code>bnz</code> branched and how
+ * long the runs took. A Machine records into its profile only when it has
+ * one; otherwise nothing is counted.
+ *
+ * Runs of the same program add up. Recording a run of a program with a
+ * different number of instructions starts the profile again. A profile can
+ * be shared by machines on several threads and read while they run.
+ */
+public class ExecutionProfile implements ExecutionProfileMXBean {
+
+	private String[] labels = new String[0];
+	private String[] opcodes = new String[0];
+	private long[] counts = new long[0];
+	private long[] taken = new long[0];
+	private boolean[] branches = new boolean[0]; // instruction i can branch
+	private boolean[] targets = new boolean[0]; // instruction i is branched to
+	private long runs;
+	private long nanos;
+
+	// Add one run of prog to the profile: instruction i was executed
+	// counts[i] times, branching taken[i] of them, in nanos nanoseconds.
+
+	public synchronized void record(List<Instruction> prog, long[] counts, long[] taken, long nanos) {
+		if (prog.size() != this.counts.length) {
+			labels = new String[prog.size()];
+			opcodes = new String[prog.size()];
+			branches = new boolean[prog.size()];
+			targets = new boolean[prog.size()];
+			for (int i = 0; i != prog.size(); i++) {
+				labels[i] = prog.get(i).label;
+				opcodes[i] = prog.get(i).opcode;
+				int target = prog.get(i).getBranchTarget();
+				if (target != -1) {
+					branches[i] = true;
+					targets[target] = true;
+				}
+			}
+			this.counts = new long[prog.size()];
+			this.taken = new long[prog.size()];
+			runs = 0;
+			this.nanos = 0;
+		}
+		for (int i = 0; i != counts.length; i++) {
+			this.counts[i] += counts[i];
+			this.taken[i] += taken[i];
+		}
+		runs++;
+		this.nanos += nanos;
+	}
+
+	@Override
+	public synchronized long getRuns() {
+		return runs;
+	}
+
+	@Override
+	public synchronized long getInstructionCount() {
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		return total;
+	}
+
+	// = the time taken by all runs, in nanoseconds
+
+	public synchronized long getElapsedNanos() {
+		return nanos;
+	}
+
+	@Override
+	public long getElapsedMillis() {
+		return getElapsedNanos() / 1000000;
+	}
+
+	// = the number of instructions in the program profiled
+
+	public synchronized int size() {
+		return counts.length;
+	}
+
+	// = the number of times instruction index was executed
+
+	public synchronized long getCount(int index) {
+		return counts[index];
+	}
+
+	// = the number of times instruction index branched
+
+	public synchronized long getTaken(int index) {
+		return taken[index];
+	}
+
+	// = the number of times instruction index was executed without branching
+
+	public synchronized long getNotTaken(int index) {
+		return counts[index] - taken[index];
+	}
+
+	@Override
+	public synchronized Map<String, Long> getOpcodeCounts() {
+		Map<String, Long> result = new TreeMap<>();
+		for (int i = 0; i != counts.length; i++) {
+			Long count = result.get(opcodes[i]);
+			result.put(opcodes[i], count == null ? counts[i] : count + counts[i]);
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getLabelCounts() {
+		Map<String, Long> result = new LinkedHashMap<>();
+		for (int i = 0; i != counts.length; i++) {
+			result.put(labels[i], counts[i]);
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized Map<String, Long> getSequenceCounts() {
+		Map<String, Long> result = new TreeMap<>();
+		for (int i = 0; i != counts.length; i++) {
+			if (counts[i] == 0) {
+				continue;
+			}
+			// only the last instruction of a sequence can branch and only
+			// its first be branched to, so each run of it starts at i
+			String sequence = opcodes[i];
+			for (int j = i + 1; j != counts.length && j <= i + 2 && !branches[j - 1] && !targets[j]; j++) {
+				sequence += " " + opcodes[j];
+				Long count = result.get(sequence);
+				result.put(sequence, count == null ? counts[i] : count + counts[i]);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized Map<String, Double> getBranchRatios() {
+		Map<String, Double> result = new LinkedHashMap<>();
+		for (int i = 0; i != counts.length; i++) {
+			if ("bnz".equals(opcodes[i]) && counts[i] != 0) {
+				result.put(labels[i], (double) taken[i] / counts[i]);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized void reset() {
+		Arrays.fill(counts, 0);
+		Arrays.fill(taken, 0);
+		runs = 0;
+		nanos = 0;
+	}
+
+	// Register the profile with the platform MBean server under
+	// sml:type=ExecutionProfile,name=name.
+	// return "the profile was registered"
+
+	public boolean register(String name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(this, objectName(name));
+			return true;
+		} catch (JMException e) {
+			System.err.format("Error registering profile %s: %s.%n", name, e);
+			return false;
+		}
+	}
+
+	// Remove the profile registered under name from the platform MBean server.
+
+	public static void unregister(String name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(objectName(name));
+		} catch (JMException e) {
+			System.err.format("Error unregistering profile %s: %s.%n", name, e);
+		}
+	}
+
+	private static ObjectName objectName(String name) throws JMException {
+		return new ObjectName("sml:type=ExecutionProfile,name=" + ObjectName.quote(name));
+	}
+
+	// representation of this instance, one instruction per line with the
+	// number of times it was executed
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(runs).append(" runs, ").append(getInstructionCount()).append(" instructions, ")
+				.append(nanos / 1000000).append(" ms\n");
+		for (int i = 0; i != counts.length; i++) {
+			s.append(String.format("%12d %s %s", counts[i], labels[i], opcodes[i]));
+			if ("bnz".equals(opcodes[i])) {
+				s.append(String.format(" taken %d not taken %d", taken[i], counts[i] - taken[i]));
+			}
+			s.append('\n');
+		}
+		return s.toString();
+	}
+
+}
@@ -0,0 +1,45 @@
+package sml;
+
+import java.util.Map;
+
+/*
+ * The management interface of an ExecutionProfile, so profiles can be read
+ * and reset from JMX tools such as JConsole.
+ */
+public interface ExecutionProfileMXBean {
+
+	// = the number of runs recorded
+
+	long getRuns();
+
+	// = the number of instructions executed in all runs
+
+	long getInstructionCount();
+
+	// = the time taken by all runs, in milliseconds
+
+	long getElapsedMillis();
+
+	// = the number of instructions executed for each opcode
+
+	Map<String, Long> getOpcodeCounts();
+
+	// = the number of times the instruction with each label was executed
+
+	Map<String, Long> getLabelCounts();
+
+	// = the number of times each pair and triple of opcodes was executed one
+	// after the other, such as "mul sub bnz", counting only instructions that
+	// always run in sequence (no branch leaves or enters between them)
+
+	Map<String, Long> getSequenceCounts();
+
+	// = the fraction of executions of each bnz, by label, that branched
+
+	Map<String, Double> getBranchRatios();
+
+	// Forget everything recorded.
+
+	void reset();
+
+}
@@ -0,0 +1,17 @@
+package sml;
+
+import lombok.Data;
+
+/*
+ * The outcome of one job run by an ExecutionService.
+ */
+@Data
+public class ExecutionResult {
+
+	// The values of the registers when the program ended
+	private final int[] registers;
+
+	// Everything printed by out instructions, one value per line
+	private final String output;
+
+}
@@ -0,0 +1,159 @@
+package sml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many executions of translated programs concurrently. Every job runs
+ * with its own registers and output, and all the jobs for a Program share
+ * it. Each thread keeps one Machine, whose registers are cleared and reused
+ * for every job it runs.
+ */
+public class ExecutionService implements AutoCloseable {
+
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private volatile Engine engine = Engine.BYTECODE;
+	private volatile int registerCount = Registers.NUMBEROFREGISTERS;
+	private volatile ExecutionLimits limits;
+	private final ThreadLocal<Machine> machines = new ThreadLocal<Machine>() {
+		@Override
+		protected Machine initialValue() {
+			return new Machine();
+		}
+	};
+
+	// A service running jobs on a pool of threads threads
+
+	public ExecutionService(int threads) {
+		this(Executors.newFixedThreadPool(threads), true);
+	}
+
+	// A service running jobs on executor, which is left running by close.
+	// On Java 21 and later this can be a virtual thread per task executor.
+
+	public ExecutionService(ExecutorService executor) {
+		this(executor, false);
+	}
+
+	private ExecutionService(ExecutorService executor, boolean ownsExecutor) {
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+	}
+
+	// The engine used by jobs submitted from now on
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public void setEngine(Engine engine) {
+		this.engine = engine;
+	}
+
+	// The number of registers of the machines running jobs submitted from
+	// now on
+
+	public int getRegisterCount() {
+		return registerCount;
+	}
+
+	public void setRegisterCount(int registerCount) {
+		this.registerCount = registerCount;
+	}
+
+	// The limits of jobs submitted from now on, or null for none. Jobs with
+	// limits also stop when their Future is cancelled.
+
+	public ExecutionLimits getLimits() {
+		return limits;
+	}
+
+	public void setLimits(ExecutionLimits limits) {
+		this.limits = limits;
+	}
+
+	// Run program starting with registers 0..registers.length-1 set to the
+	// values in registers.
+
+	public Future<ExecutionResult> submit(Program program, int[] registers) {
+		return executor.submit(new Job(program, registers.clone(), null, engine, registerCount, limits));
+	}
+
+	// Resume snapshot, taken of a machine running program.
+
+	public Future<ExecutionResult> submit(Program program, Snapshot snapshot) {
+		return executor.submit(new Job(program, null, snapshot, engine, snapshot.getRegisterCount(), limits));
+	}
+
+	// Resume snapshot once for each of the values in values, set in register.
+
+	public List<Future<ExecutionResult>> forkAll(Program program, Snapshot snapshot, int register, int[] values) {
+		List<Future<ExecutionResult>> results = new ArrayList<>(values.length);
+		for (int value : values) {
+			results.add(submit(program, snapshot.fork(register, value)));
+		}
+		return results;
+	}
+
+	// Run program once for each of the register values in registers.
+
+	public List<Future<ExecutionResult>> submitAll(Program program, List<int[]> registers) {
+		List<Future<ExecutionResult>> results = new ArrayList<>(registers.size());
+		for (int[] initial : registers) {
+			results.add(submit(program, initial));
+		}
+		return results;
+	}
+
+	@Override
+	public void close() {
+		if (ownsExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	/*
+	 * One execution of a program, from its start or from a snapshot.
+	 */
+	private class Job implements Callable<ExecutionResult> {
+
+		private final Program program;
+		private final int[] registers;
+		private final Snapshot snapshot;
+		private final Engine engine;
+		private final int registerCount;
+		private final ExecutionLimits limits;
+
+		Job(Program program, int[] registers, Snapshot snapshot, Engine engine, int registerCount, ExecutionLimits limits) {
+			this.program = program;
+			this.registers = registers;
+			this.snapshot = snapshot;
+			this.engine = engine;
+			this.registerCount = registerCount;
+			this.limits = limits;
+		}
+
+		@Override
+		public ExecutionResult call() {
+			CollectingOutputSink output = new CollectingOutputSink();
+			Machine m = machines.get();
+			m.setProgram(program);
+			m.setEngine(engine);
+			m.setRegisterCount(registerCount);
+			m.setLimits(limits);
+			m.setOutput(output);
+			if (snapshot != null) {
+				m.resume(snapshot);
+			} else {
+				m.execute(registers);
+			}
+			return new ExecutionResult(m.getRegisters().getRegisters().clone(), output.toString());
+		}
+	}
+
+}
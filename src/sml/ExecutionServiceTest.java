@@ -0,0 +1,149 @@
+package sml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExecutionServiceTest {
+
+	private Program program;
+
+	@Before
+	public void setup() {
+		Labels labels = new Labels();
+		ArrayList<Instruction> instructions = new ArrayList<>();
+		assertTrue(new Translator("code.sml").readAndTranslate(labels, instructions));
+		// Start from the value already in register 20 rather than 6.
+		instructions.set(0, new LinInstruction("f0", 23, 0));
+		program = new Program("factorial", instructions, labels);
+	}
+
+	@Test
+	public void runFactorialsConcurrently() throws Exception {
+		try (ExecutionService service = new ExecutionService(4)) {
+			assertFactorials(service);
+		}
+	}
+
+	@Test
+	public void runFactorialsOnEveryEngine() throws Exception {
+		for (Engine engine : Engine.values()) {
+			try (ExecutionService service = new ExecutionService(2)) {
+				service.setEngine(engine);
+				assertFactorials(service);
+			}
+		}
+	}
+
+	@Test
+	public void runFactorialsOnSuppliedExecutor() throws Exception {
+		try (ExecutionService service = new ExecutionService(Executors.newCachedThreadPool())) {
+			assertFactorials(service);
+		}
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void reportProgramFailure() throws Throwable {
+		Labels labels = new Labels();
+		labels.addLabel("f0");
+		program = new Program("division", Arrays.asList((Instruction) new DivInstruction("f0", 1, 2, 3)), labels);
+		try (ExecutionService service = new ExecutionService(1)) {
+			service.submit(program, new int[0]).get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Test
+	public void stopRunawayProgramAtStepLimit() throws Exception {
+		ExecutionLimits limits = new ExecutionLimits();
+		limits.setMaxSteps(10000);
+		for (Engine engine : Engine.values()) {
+			try (ExecutionService service = new ExecutionService(1)) {
+				service.setEngine(engine);
+				service.setLimits(limits);
+				ExecutionAbortedException e = abortRunaway(service);
+				assertEquals(ExecutionAbortedException.Reason.STEP_LIMIT, e.getReason());
+				assertEquals(1, e.getPc());
+				assertTrue(e.getSteps() > 10000);
+				assertEquals(7, e.getRegisters()[2]);
+			}
+		}
+	}
+
+	@Test
+	public void stopRunawayProgramAtDeadline() throws Exception {
+		ExecutionLimits limits = new ExecutionLimits();
+		limits.setTimeout(50, TimeUnit.MILLISECONDS);
+		for (Engine engine : Engine.values()) {
+			try (ExecutionService service = new ExecutionService(1)) {
+				service.setEngine(engine);
+				service.setLimits(limits);
+				assertEquals(ExecutionAbortedException.Reason.DEADLINE, abortRunaway(service).getReason());
+			}
+		}
+	}
+
+	@Test
+	public void cancelRunawayProgram() throws Exception {
+		try (ExecutionService service = new ExecutionService(1)) {
+			service.setLimits(new ExecutionLimits());
+			Future<ExecutionResult> runaway = service.submit(runaway(), new int[0]);
+			Thread.sleep(20);
+			assertTrue(runaway.cancel(true));
+			// the only thread is free again for the next job
+			service.setLimits(null);
+			assertEquals(720, service.submit(program, new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 6 })
+					.get(10, TimeUnit.SECONDS).getRegisters()[21]);
+		}
+	}
+
+	private ExecutionAbortedException abortRunaway(ExecutionService service) throws Exception {
+		try {
+			service.submit(runaway(), new int[0]).get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return (ExecutionAbortedException) e.getCause();
+		}
+		throw new AssertionError("Expected the program to be stopped");
+	}
+
+	// = a program that loops forever at f1, as bnz only falls through on 1
+	private static Program runaway() {
+		Labels labels = new Labels();
+		List<Instruction> instructions = new ArrayList<>();
+		instructions.add(new LinInstruction("f0", 2, 7));
+		instructions.add(new BnzInstruction("f1", 1, "f1"));
+		for (Instruction instruction : instructions) {
+			labels.addLabel(instruction.label);
+		}
+		return new Program("runaway", instructions, labels);
+	}
+
+	private void assertFactorials(ExecutionService service) throws Exception {
+		List<int[]> inputs = new ArrayList<>();
+		for (int n = 2; n <= 12; n++) {
+			int[] registers = new int[21];
+			registers[20] = n;
+			inputs.add(registers);
+		}
+		List<Future<ExecutionResult>> results = service.submitAll(program, inputs);
+		int factorial = 1;
+		for (int n = 2; n <= 12; n++) {
+			factorial *= n;
+			ExecutionResult result = results.get(n - 2).get();
+			assertEquals(factorial, result.getRegisters()[21]);
+			assertEquals(factorial + System.lineSeparator(), result.getOutput());
+		}
+	}
+
+}
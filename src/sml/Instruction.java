@@ -8,8 +8,8 @@ package sml;
 
 public abstract class Instruction {
 
-	protected String label;
-	protected String opcode;
+	protected final String label;
+	protected final String opcode;
 
 	// Constructor: an instruction with label l and opcode op
 	// (op must be an operation of the language)
@@ -34,40 +34,51 @@ public abstract class Instruction {
 
 	public abstract void execute(Machine m);
 
-	// Return the opcode for this instruction
+	// Append the bytecode form of this instruction to code, returning false
+	// if it has none (programs containing it are then only interpreted).
 
-	private String getOpCode() {
-		String className = this.getClass().getSimpleName().toLowerCase();
-		int classNameLength = className.length();
-		return className.substring(0, classNameLength < 3 ? classNameLength : 3);
+	public boolean encode(Bytecode.Builder code) {
+		return false;
 	}
 
-	// Safe way to get a machine register from machines with differing register counts.
-	
-	protected static int getMachineRegister(Machine m, int i) {
-		try {
-			return m.getRegisters().getRegister(i);
-		} catch (IndexOutOfBoundsException e) {
-			System.err.format("Invalid register number %d.%n", i);
-			return 0;
-		} catch (Exception e) {
-			System.err.format("Error getting register %d: %s%n", i, e.getMessage());
-			return 0;
+	// Return the opcode for this instruction: its class name without the
+	// "Instruction" suffix, in lower case
+
+	private String getOpCode() {
+		String className = this.getClass().getSimpleName();
+		if (className.endsWith("Instruction")) {
+			className = className.substring(0, className.length() - "Instruction".length());
 		}
+		return className.toLowerCase();
+	}
+
+	// = the index of the instruction this instruction may make the next one
+	// to execute, or -1 if it always continues with the following one.
+	// Instructions that change the machine's pc must say where, as the
+	// BLOCK engine only looks for branches at the ends of blocks.
+
+	public int getBranchTarget() {
+		return -1;
+	}
+
+	// = the registers this instruction reads or writes, which are checked
+	// against the machine's registers before it is executed, so execute
+	// can access them directly
 
+	public int[] getRegisterOperands() {
+		return new int[0];
 	}
 
-	// Safe way to set a machine register from machines with differing register
-	// counts.
+	// = whether every register this instruction reads or writes is one of
+	// the registerCount registers of a machine
 
-	protected static void setMachineRegister(Machine m, int i, int v) {
-		try {
-			m.getRegisters().setRegister(i, v);
-		} catch (IndexOutOfBoundsException e) {
-			System.err.format("Invalid register number %d.%n", i);
-		} catch (Exception e) {
-			System.err.format("Error setting register %d to %d: %s%n", i, v, e.getMessage());
+	public boolean hasValidRegisters(int registerCount) {
+		for (int register : getRegisterOperands()) {
+			if (register < 0 || register >= registerCount) {
+				return false;
+			}
 		}
+		return true;
 	}
 
 }
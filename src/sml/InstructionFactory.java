@@ -0,0 +1,19 @@
+package sml;
+
+/*
+ * Creates the instructions for one opcode. The factories for the standard
+ * instructions are built in to InstructionSet; others can be added by listing
+ * their classes in META-INF/services/sml.InstructionFactory.
+ */
+public interface InstructionFactory {
+
+	// = the opcode of the instructions this factory creates
+
+	String getOpcode();
+
+	// = an instruction with label label and operands operands, or null if
+	// the operands are the wrong number or types for this opcode
+
+	Instruction create(String label, Operands operands);
+
+}
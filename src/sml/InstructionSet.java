@@ -0,0 +1,52 @@
+package sml;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/*
+ * The registry of instruction factories by opcode. It holds the standard
+ * instructions and any factories found by ServiceLoader, and is built once.
+ * Registering copies the map, so lookups need no locking.
+ */
+public class InstructionSet {
+
+	private static volatile Map<String, InstructionFactory> factories = new HashMap<>();
+
+	static {
+		register(new AddInstruction.Factory());
+		register(new SubInstruction.Factory());
+		register(new MulInstruction.Factory());
+		register(new DivInstruction.Factory());
+		register(new OutInstruction.Factory());
+		register(new LinInstruction.Factory());
+		register(new BnzInstruction.Factory());
+		register(new LaddInstruction.Factory());
+		register(new LsubInstruction.Factory());
+		register(new LmulInstruction.Factory());
+		register(new LdivInstruction.Factory());
+		register(new LlinInstruction.Factory());
+		register(new LoutInstruction.Factory());
+		for (InstructionFactory factory : ServiceLoader.load(InstructionFactory.class)) {
+			register(factory);
+		}
+	}
+
+	private InstructionSet() {
+	}
+
+	// Add factory to the registry, replacing any factory for its opcode.
+
+	public static synchronized void register(InstructionFactory factory) {
+		Map<String, InstructionFactory> copy = new HashMap<>(factories);
+		copy.put(factory.getOpcode(), factory);
+		factories = copy;
+	}
+
+	// = the factory for opcode (null if there is none)
+
+	public static InstructionFactory get(String opcode) {
+		return factories.get(opcode);
+	}
+
+}
@@ -1,6 +1,9 @@
 package sml;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import java.util.List;
 
@@ -73,12 +76,117 @@ public class InstructionTest {
 		assertRegisterEquals(13, 32);
 	}
 
+	@Test
+	public void divideTwoNumbersWithBytecode() {
+		machine.setEngine(Engine.BYTECODE);
+		program.add(new LinInstruction("f0", 2, 12));
+		program.add(new LinInstruction("f1", 3, 4));
+		program.add(new DivInstruction("f2", 1, 2, 3));
+		machine.execute();
+		assertRegisterEquals(1, 3);
+	}
+
+	@Test
+	public void skipProgramWithInvalidRegister() {
+		program.add(new LinInstruction("f0", 1, 5));
+		program.add(new LinInstruction("f1", 32, 1));
+		machine.execute();
+		assertRegisterEquals(1, 0);
+	}
+
+	@Test
+	public void setInvalidRegisterValueWithBytecode() {
+		machine.setEngine(Engine.BYTECODE);
+		program.add(new LinInstruction("f0", 65, 1));
+		machine.execute();
+	}
+
+	@Test
+	public void multiplyTwoNumbersWithCompiler() {
+		machine.setEngine(Engine.COMPILER);
+		program.add(new LinInstruction("f0", 2, 3));
+		program.add(new LinInstruction("f1", 3, 4));
+		program.add(new MulInstruction("f2", 1, 2, 3));
+		machine.execute();
+		assertRegisterEquals(1, 12);
+	}
+
+	@Test
+	public void keepRegistersWhenCompiledProgramFails() {
+		machine.setEngine(Engine.COMPILER);
+		program.add(new LinInstruction("f0", 2, 100000));
+		program.add(new LinInstruction("f1", 3, 0));
+		program.add(new DivInstruction("f2", 1, 2, 3));
+		try {
+			machine.execute();
+			fail("Expected division by zero");
+		} catch (ArithmeticException e) {
+			assertRegisterEquals(2, 100000);
+		}
+	}
+
+	@Test
+	public void stopAfterFailedInstructionInBlock() {
+		machine.setEngine(Engine.BLOCK);
+		program.add(new LinInstruction("f0", 2, 1));
+		program.add(new DivInstruction("f1", 1, 2, 3));
+		program.add(new LinInstruction("f2", 2, 5));
+		try {
+			machine.execute();
+			fail("Expected division by zero");
+		} catch (ArithmeticException e) {
+			assertEquals(2, machine.getPc());
+			assertRegisterEquals(2, 1);
+		}
+	}
+
 	@Test
 	public void setInvalidRegisterValue() {
 		program.add(new LinInstruction("f0", 65, 1));
 		machine.execute();
 	}
 	
+	@Test
+	public void reuseRegistersBetweenRuns() {
+		program.add(new LinInstruction("f0", 2, 3));
+		machine.execute();
+		Registers registers = machine.getRegisters();
+		program.clear();
+		machine.execute();
+		assertSame(registers, machine.getRegisters());
+		assertRegisterEquals(2, 0);
+	}
+
+	@Test
+	public void divideLongNumbers() {
+		program.add(new LlinInstruction("f0", 2, 30000000000L));
+		program.add(new LlinInstruction("f1", 3, 7));
+		program.add(new LdivInstruction("f2", 1, 2, 3));
+		machine.execute();
+		assertEquals(4285714285L, machine.getRegisters().getLongRegister(1));
+	}
+
+	@Test
+	public void failOnUnresolvedBranch() {
+		program.add(new LinInstruction("f0", 2, 0));
+		program.add(new BnzInstruction("f1", 2, "f9"));
+		try {
+			machine.execute();
+			fail("Expected the unresolved label to be reported");
+		} catch (IllegalStateException e) {
+			assertEquals("Unresolved label 'f9' in f1", e.getMessage());
+			assertEquals(2, machine.getPc());
+		}
+	}
+
+	@Test
+	public void printRegistersWithoutCreatingLongRegisters() {
+		program.add(new LinInstruction("f0", 2, 3));
+		machine.execute();
+		String printed = machine.getRegisters().toString();
+		assertFalse(printed, printed.contains("longRegisters"));
+	}
+
 	private void assertRegisterEquals(int register, int expected) {
 		assertEquals(expected, machine.getRegisters().getRegister(register));
 	}
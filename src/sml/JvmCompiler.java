@@ -0,0 +1,561 @@
+package sml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles Bytecode into a JVM class implementing CompiledProgram, so that
+ * HotSpot can optimise an SML program like ordinary Java. The registers are
+ * held in local variables chosen by RegisterAllocation, so registers that are
+ * not live at the same time share a local, and each <code>bnz</code> becomes
+ * a conditional jump. Registers are written back to the array when the
+ * program ends, or when an instruction fails, from a handler for that
+ * instruction.
+ *
+ * Each class is defined by its own class loader so it can be unloaded once
+ * the program is no longer used. Class files are written at version 49 so
+ * they need no stack map frames.
+ */
+public class JvmCompiler {
+
+	// HotSpot does not JIT-compile methods larger than this, so bigger
+	// programs are better left to the bytecode engine.
+
+	private static final int MAX_METHOD_SIZE = 8000;
+
+	// Recently compiled programs, keyed by their code
+
+	private static final int CACHE_SIZE = 64;
+
+	private static final Map<Key, CompiledProgram> cache = new LinkedHashMap<Key, CompiledProgram>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CompiledProgram> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private static final String CLASS_NAME = "sml/Compiled";
+
+	// Kept as the compiled form of code that compile declined, so that runs
+	// after the first fall back to the bytecode engine without analysing the
+	// code again
+
+	private static final CompiledProgram DECLINED = (r, out) -> {
+		throw new IllegalStateException("The program was not compiled");
+	};
+
+	private JvmCompiler() {
+	}
+
+	// Compile code into a CompiledProgram, returning null if it is too large
+	// to benefit from compilation or has superinstructions, which are not
+	// compiled. Either answer is kept with code.
+
+	public static CompiledProgram compile(Bytecode code) {
+		CompiledProgram compiled = code.getCompiled();
+		if (compiled != null) {
+			return compiled != DECLINED ? compiled : null;
+		}
+		if (code.hasSuperinstructions()) {
+			return decline(code);
+		}
+		Key key = new Key(code.getCode());
+		synchronized (cache) {
+			compiled = cache.get(key);
+			if (compiled != null) {
+				code.setCompiled(compiled);
+				return compiled;
+			}
+		}
+		byte[] classFile = new ClassWriter(code).write();
+		if (classFile == null) {
+			return decline(code);
+		}
+		try {
+			Class<?> c = new Loader().define(classFile);
+			compiled = (CompiledProgram) c.getDeclaredConstructor().newInstance();
+			synchronized (cache) {
+				cache.put(key, compiled);
+			}
+			code.setCompiled(compiled);
+			return compiled;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			System.err.format("Error whilst compiling program: %s.%n", e);
+			return decline(code);
+		}
+	}
+
+	// Record that code is not compiled.
+	// return null, for compile to return
+
+	private static CompiledProgram decline(Bytecode code) {
+		code.setCompiled(DECLINED);
+		return null;
+	}
+
+	/*
+	 * Writes the class file for one program.
+	 */
+	private static class ClassWriter {
+
+		private final Bytecode bytecode;
+		private final int[] code;
+		private final ConstantPool pool = new ConstantPool();
+		private final Code body = new Code();
+
+		private RegisterAllocation allocation;
+		private int maxLocals;
+
+		ClassWriter(Bytecode bytecode) {
+			this.bytecode = bytecode;
+			code = bytecode.getCode();
+		}
+
+		byte[] write() {
+			// Every instruction takes at least two bytes, so do not analyse
+			// programs that cannot fit.
+			if (bytecode.size() > MAX_METHOD_SIZE / 2) {
+				return null;
+			}
+			allocation = RegisterAllocation.of(bytecode);
+			// this, r, out, the slots and the exception being rethrown
+			maxLocals = 3 + allocation.getSlotCount() + 1;
+
+			int thisClass = pool.classRef(CLASS_NAME);
+			int superClass = pool.classRef("java/lang/Object");
+			int programInterface = pool.classRef("sml/CompiledProgram");
+			int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+			int codeName = pool.utf8("Code");
+			int initName = pool.utf8("<init>");
+			int initType = pool.utf8("()V");
+			int runName = pool.utf8("run");
+			int runType = pool.utf8("([ILsml/OutputSink;)V");
+
+			if (!writeRun()) {
+				return null;
+			}
+
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);
+				out.writeShort(49);
+				pool.write(out);
+				out.writeShort(0x0031); // public final super
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(1);
+				out.writeShort(programInterface);
+				out.writeShort(0); // fields
+				out.writeShort(2); // methods
+
+				// public <init>() { super(); }
+				out.writeShort(0x0001);
+				out.writeShort(initName);
+				out.writeShort(initType);
+				out.writeShort(1);
+				out.writeShort(codeName);
+				out.writeInt(12 + 5);
+				out.writeShort(1);
+				out.writeShort(1);
+				out.writeInt(5);
+				out.writeByte(0x2a); // aload_0
+				out.writeByte(0xb7); // invokespecial
+				out.writeShort(objectInit);
+				out.writeByte(0xb1); // return
+				out.writeShort(0);
+				out.writeShort(0);
+
+				// public void run(int[] r, OutputSink out)
+				out.writeShort(0x0001);
+				out.writeShort(runName);
+				out.writeShort(runType);
+				out.writeShort(1);
+				out.writeShort(codeName);
+				out.writeInt(12 + body.length + 8 * body.handlers.size());
+				out.writeShort(4);
+				out.writeShort(maxLocals);
+				out.writeInt(body.length);
+				out.write(body.bytes, 0, body.length);
+				out.writeShort(body.handlers.size());
+				for (int[] handler : body.handlers) {
+					out.writeShort(handler[0]);
+					out.writeShort(handler[1]);
+					out.writeShort(handler[2]);
+					out.writeShort(0); // any exception
+				}
+				out.writeShort(0);
+
+				out.writeShort(0); // class attributes
+				return bytes.toByteArray();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private boolean writeRun() {
+			int[] loads = allocation.getLoads();
+			for (int k = 0; k != loads.length; k += 2) {
+				body.op(0x2b); // aload_1
+				body.pushInt(loads[k]);
+				body.op(0x2e); // iaload
+				body.istore(local(loads[k + 1]));
+			}
+
+			// instructions that can fail, with the code that may throw
+			Map<Integer, Integer> starts = new HashMap<>();
+			Map<Integer, Integer> branches = new HashMap<>();
+			List<int[]> failures = new ArrayList<>();
+			for (int i = 0; i != bytecode.size(); i++) {
+				int pc = bytecode.offsetOf(i);
+				int start = body.length;
+				starts.put(pc, start);
+				switch (code[pc]) {
+				case Bytecode.ADD:
+					arithmetic(i, pc, 0x60);
+					break;
+				case Bytecode.SUB:
+					arithmetic(i, pc, 0x64);
+					break;
+				case Bytecode.MUL:
+					arithmetic(i, pc, 0x68);
+					break;
+				case Bytecode.DIV:
+					failures.add(new int[] { i, start, arithmetic(i, pc, 0x6c) });
+					break;
+				case Bytecode.OUT:
+					body.op(0x2c); // aload_2
+					body.iload(local(allocation.useSlot(i, 0)));
+					body.op(0xb9); // invokeinterface
+					body.u2(pool.interfaceMethodRef("sml/OutputSink", "write", "(I)V"));
+					body.op(2);
+					body.op(0);
+					failures.add(new int[] { i, start, body.length });
+					break;
+				case Bytecode.LIN:
+					prepareStore(i, code[pc + 1]);
+					body.pushInt(code[pc + 2]);
+					store(i, code[pc + 1]);
+					break;
+				case Bytecode.BNZ:
+					body.iload(local(allocation.useSlot(i, 0)));
+					body.op(0x04); // iconst_1
+					branches.put(body.length, code[pc + 2]);
+					body.op(0xa0); // if_icmpne
+					body.u2(0);
+					break;
+				case Bytecode.ADDI:
+					addImmediate(i, pc);
+					break;
+				case Bytecode.ADDI_BNZ:
+					addImmediate(i, pc);
+					if (allocation.defSlot(i) == -1) {
+						body.op(0x2b); // aload_1
+						body.pushInt(code[pc + 1]);
+						body.op(0x2e); // iaload
+					} else {
+						body.iload(local(allocation.defSlot(i)));
+					}
+					body.op(0x04); // iconst_1
+					branches.put(body.length, code[pc + 4]);
+					body.op(0xa0); // if_icmpne
+					body.u2(0);
+					break;
+				default:
+					// not compiled, so the program is interpreted
+					return false;
+				}
+			}
+			for (Map.Entry<Integer, Integer> branch : branches.entrySet()) {
+				int from = branch.getKey();
+				body.patch(from + 1, starts.get(branch.getValue()) - from);
+			}
+
+			saveRegisters(allocation.getSaves(bytecode.size()));
+			body.op(0xb1); // return
+
+			// For each failure, save the registers and rethrow. Failures
+			// saving the same registers share a handler.
+			Map<Key, Integer> handlers = new HashMap<>();
+			for (int[] failure : failures) {
+				int[] saves = allocation.getSaves(failure[0]);
+				if (saves.length == 0) {
+					continue;
+				}
+				Key key = new Key(saves);
+				Integer handler = handlers.get(key);
+				if (handler == null) {
+					handler = body.length;
+					handlers.put(key, handler);
+					body.astore(maxLocals - 1);
+					saveRegisters(saves);
+					body.aload(maxLocals - 1);
+					body.op(0xbf); // athrow
+				}
+				body.handlers.add(new int[] { failure[1], failure[2], handler });
+			}
+
+			return body.length <= MAX_METHOD_SIZE;
+		}
+
+		// Write the code of arithmetic instruction i at pc, with op as the
+		// JVM instruction, returning the offset just after op.
+
+		private int arithmetic(int i, int pc, int op) {
+			prepareStore(i, code[pc + 1]);
+			body.iload(local(allocation.useSlot(i, 0)));
+			body.iload(local(allocation.useSlot(i, 1)));
+			body.op(op);
+			int end = body.length;
+			store(i, code[pc + 1]);
+			return end;
+		}
+
+		// Write the code adding the value of ADDI or ADDI_BNZ instruction i at
+		// pc to its register.
+
+		private void addImmediate(int i, int pc) {
+			prepareStore(i, code[pc + 1]);
+			body.iload(local(allocation.useSlot(i, 0)));
+			body.pushInt(code[pc + 3]);
+			body.op(0x60); // iadd
+			store(i, code[pc + 1]);
+		}
+
+		// If the result of instruction i is only written to the register file,
+		// push the array and register it is stored to.
+
+		private void prepareStore(int i, int register) {
+			if (allocation.defSlot(i) == -1) {
+				body.op(0x2b); // aload_1
+				body.pushInt(register);
+			}
+		}
+
+		// Store the result of instruction i, which is on the stack.
+
+		private void store(int i, int register) {
+			int slot = allocation.defSlot(i);
+			if (slot == -1) {
+				body.op(0x4f); // iastore
+				return;
+			}
+			body.istore(local(slot));
+			if (allocation.writesThrough(i)) {
+				body.op(0x2b); // aload_1
+				body.pushInt(register);
+				body.iload(local(slot));
+				body.op(0x4f); // iastore
+			}
+		}
+
+		// Store the (register, slot) pairs in saves to the register array.
+
+		private void saveRegisters(int[] saves) {
+			for (int k = 0; k != saves.length; k += 2) {
+				body.op(0x2b); // aload_1
+				body.pushInt(saves[k]);
+				body.iload(local(saves[k + 1]));
+				body.op(0x4f); // iastore
+			}
+		}
+
+		// = the local variable of slot, after this (0), r (1) and out (2)
+
+		private int local(int slot) {
+			return 3 + slot;
+		}
+
+		/*
+		 * The body of a method being written.
+		 */
+		private class Code {
+
+			byte[] bytes = new byte[256];
+			int length;
+			// (start, end, handler) of each exception handler
+			List<int[]> handlers = new ArrayList<>();
+
+			void op(int b) {
+				if (length == bytes.length) {
+					bytes = Arrays.copyOf(bytes, 2 * length);
+				}
+				bytes[length++] = (byte) b;
+			}
+
+			void u2(int v) {
+				op(v >> 8);
+				op(v);
+			}
+
+			void patch(int at, int v) {
+				bytes[at] = (byte) (v >> 8);
+				bytes[at + 1] = (byte) v;
+			}
+
+			void pushInt(int v) {
+				if (v >= -1 && v <= 5) {
+					op(0x03 + v); // iconst_<v>
+				} else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+					op(0x10); // bipush
+					op(v);
+				} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+					op(0x11); // sipush
+					u2(v);
+				} else {
+					op(0x13); // ldc_w
+					u2(pool.integer(v));
+				}
+			}
+
+			void iload(int local) {
+				local(0x15, 0x1a, local);
+			}
+
+			void istore(int local) {
+				local(0x36, 0x3b, local);
+			}
+
+			void aload(int local) {
+				local(0x19, 0x2a, local);
+			}
+
+			void astore(int local) {
+				local(0x3a, 0x4b, local);
+			}
+
+			private void local(int op, int shortOp, int local) {
+				if (local <= 3) {
+					op(shortOp + local);
+				} else if (local <= 255) {
+					op(op);
+					op(local);
+				} else {
+					op(0xc4); // wide
+					op(op);
+					u2(local);
+				}
+			}
+		}
+	}
+
+	/*
+	 * The constant pool of a class being written.
+	 */
+	private static class ConstantPool {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final Map<String, Integer> entries = new HashMap<>();
+		private int count = 1;
+
+		int utf8(String s) {
+			return entry("U" + s, 1, s, 0, 0);
+		}
+
+		int integer(int v) {
+			return entry("I" + v, 3, null, v, 0);
+		}
+
+		int classRef(String name) {
+			return entry("C" + name, 7, null, utf8(name), -1);
+		}
+
+		int nameAndType(String name, String type) {
+			return entry("N" + name + " " + type, 12, null, utf8(name), utf8(type));
+		}
+
+		int methodRef(String owner, String name, String type) {
+			return entry("M" + owner + "." + name + type, 10, null, classRef(owner), nameAndType(name, type));
+		}
+
+		int interfaceMethodRef(String owner, String name, String type) {
+			return entry("I" + owner + "." + name + type, 11, null, classRef(owner), nameAndType(name, type));
+		}
+
+		// Add an entry with tag and a string, int, u2 or pair of u2s as
+		// its value unless an equal entry exists, and return its index.
+
+		private int entry(String key, int tag, String s, int a, int b) {
+			Integer index = entries.get(key);
+			if (index != null) {
+				return index;
+			}
+			try {
+				out.writeByte(tag);
+				switch (tag) {
+				case 1:
+					out.writeUTF(s);
+					break;
+				case 3:
+					out.writeInt(a);
+					break;
+				case 7:
+					out.writeShort(a);
+					break;
+				default:
+					out.writeShort(a);
+					out.writeShort(b);
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			entries.put(key, count);
+			return count++;
+		}
+
+		void write(DataOutputStream to) throws IOException {
+			to.writeShort(count);
+			bytes.writeTo(to);
+		}
+	}
+
+	/*
+	 * Defines one compiled class.
+	 */
+	private static class Loader extends ClassLoader {
+
+		Loader() {
+			super(CompiledProgram.class.getClassLoader());
+		}
+
+		Class<?> define(byte[] classFile) {
+			return defineClass(CLASS_NAME.replace('/', '.'), classFile, 0, classFile.length);
+		}
+	}
+
+	/*
+	 * The code of a program as a cache key.
+	 */
+	private static class Key {
+
+		private final int[] code;
+		private final int hash;
+
+		Key(int[] code) {
+			this.code = code;
+			this.hash = Arrays.hashCode(code);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && Arrays.equals(code, ((Key) o).code);
+		}
+	}
+
+}
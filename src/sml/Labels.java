@@ -1,39 +1,70 @@
 package sml;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 //An instance contains a list of Strings, called "labels",
 //in the order in which they were added to the list. 
+//Lookups by name are hashed so they do not depend on the number of labels.
 
 public class Labels {
 
 	private ArrayList<String> labels;
+	private HashMap<String, Integer> indexes;
+	private boolean readOnly;
 
 	{
 		labels = new ArrayList<>();
+		indexes = new HashMap<>();
 	}
 
 	// Add label lab to this list and return its number in the list
 	// (the first one added is number 0)
-	// Precondition: the list has at most 49 entries
 
 	public int addLabel(String lab) {
+		checkWritable();
 		labels.add(lab);
-		return labels.size() - 1;
+		int index = labels.size() - 1;
+		indexes.putIfAbsent(lab, index);
+		return index;
+	}
+
+	// = the number of labels in the list
+
+	public int size() {
+		return labels.size();
+	}
+
+	// = label number i in the list
+
+	public String get(int i) {
+		return labels.get(i);
+	}
+
+	// = a new list holding the same labels as this one
+
+	public Labels copy() {
+		Labels copy = new Labels();
+		copy.labels.addAll(labels);
+		copy.indexes.putAll(indexes);
+		return copy;
+	}
+
+	// Make this list read only, so that it can be shared between threads,
+	// and return it. addLabel and reset then throw
+	// UnsupportedOperationException.
+
+	public Labels freeze() {
+		readOnly = true;
+		return this;
 	}
 
 	// = the number of label lab in the list
 	// (= -1 if lab is not in the list)
 
 	public int indexOf(String lab) {
-
-		// invariant: lab is not in labels[0..i-1]
-		for (int i = 0; i != labels.size(); i++) {
-			if (lab.equals(labels.get(i))) {
-				return i;
-			}
-		}
-		return -1;
+		Integer index = indexes.get(lab);
+		return index == null ? -1 : index;
 	}
 
 	// representation of this instance, "(label 0, label 1, ..., label (n-1))"
@@ -57,6 +88,14 @@ public class Labels {
 	// Set the number of elements in the list to 0
 
 	public void reset() {
+		checkWritable();
 		labels.clear();
+		indexes.clear();
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Labels are read only");
+		}
 	}
 }
\ No newline at end of file
@@ -6,22 +6,37 @@ package sml;
  */
 public class LinInstruction extends Instruction {
 	
-	private int register;
-	private int value;
+	private final int register;
+	private final int value;
 
 	public LinInstruction(String label, String opcode) {
-		super(label, opcode);
+		this(label, opcode, 0, 0);
 	}
 
 	public LinInstruction(String label, int register, int value) {
-		super(label, "lin");
+		this(label, "lin", register, value);
+	}
+
+	private LinInstruction(String label, String opcode, int register, int value) {
+		super(label, opcode);
 		this.register = register;
 		this.value = value;
 	}
 	
 	@Override
 	public void execute(Machine m) {
-		setMachineRegister(m, register, value);
+		m.getRegisters().getRegisters()[register] = value;
+	}
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { register };
+	}
+
+	@Override
+	public boolean encode(Bytecode.Builder code) {
+		code.emit(Bytecode.LIN).emit(register).emit(value);
+		return true;
 	}
 
 	@Override
@@ -29,4 +44,23 @@ public class LinInstruction extends Instruction {
 		return super.toString() + " register " + register + " value is " + value;
 	}
 
+	/*
+	 * Creates lin instructions from the operands r x.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "lin";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (!operands.areIntegers(2)) {
+				return null;
+			}
+			return new LinInstruction(label, operands.getInteger(0), operands.getInteger(1));
+		}
+	}
+
 }
@@ -0,0 +1,60 @@
+package sml;
+
+/**
+ * An SML instruction which when given two parameters x and r will store long
+ * integer x in long register r.
+ */
+public class LlinInstruction extends Instruction {
+
+	private final int register;
+	private final long value;
+
+	public LlinInstruction(String label, String opcode) {
+		this(label, opcode, 0, 0);
+	}
+
+	public LlinInstruction(String label, int register, long value) {
+		this(label, "llin", register, value);
+	}
+
+	private LlinInstruction(String label, String opcode, int register, long value) {
+		super(label, opcode);
+		this.register = register;
+		this.value = value;
+	}
+
+	@Override
+	public void execute(Machine m) {
+		m.getRegisters().getLongRegisters()[register] = value;
+	}
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { register };
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " long register " + register + " value is " + value;
+	}
+
+	/*
+	 * Creates llin instructions from the operands r x.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "llin";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (operands.size() != 2 || !operands.isInteger(0) || !operands.isLong(1)) {
+				return null;
+			}
+			return new LlinInstruction(label, operands.getInteger(0), operands.getLong(1));
+		}
+	}
+
+}
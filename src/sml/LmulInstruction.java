@@ -0,0 +1,64 @@
+package sml;
+
+/**
+ * An SML instruction which when given three parameters s1, s2 and r will
+ * multiply the contents of long registers s1 and s2 and store the result in
+ * long register r.
+ */
+public class LmulInstruction extends Instruction {
+
+	private final int result;
+	private final int op1;
+	private final int op2;
+
+	public LmulInstruction(String label, String op) {
+		this(label, op, 0, 0, 0);
+	}
+
+	public LmulInstruction(String label, int result, int op1, int op2) {
+		this(label, "lmul", result, op1, op2);
+	}
+
+	private LmulInstruction(String label, String op, int result, int op1, int op2) {
+		super(label, op);
+		this.result = result;
+		this.op1 = op1;
+		this.op2 = op2;
+	}
+
+	@Override
+	public void execute(Machine m) {
+		long[] r = m.getRegisters().getLongRegisters();
+		r[result] = r[op1] * r[op2];
+	}
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { result, op1, op2 };
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " long register " + op1 + " * long register " + op2 + " to long register " + result;
+	}
+
+	/*
+	 * Creates lmul instructions from the operands r s1 s2.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "lmul";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (!operands.areIntegers(3)) {
+				return null;
+			}
+			return new LmulInstruction(label, operands.getInteger(0), operands.getInteger(1), operands.getInteger(2));
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package sml;
+
+/**
+ * An SML instruction which when given one parameter s1 will print the contents
+ * of long register s1 on the machine's output (one value per line).
+ */
+public class LoutInstruction extends Instruction {
+
+	private final int op1;
+
+	public LoutInstruction(String l, String op) {
+		this(l, op, 0);
+	}
+
+	public LoutInstruction(String label, int op1) {
+		this(label, "lout", op1);
+	}
+
+	private LoutInstruction(String label, String op, int op1) {
+		super(label, op);
+		this.op1 = op1;
+	}
+
+	@Override
+	public void execute(Machine m) {
+		m.getOutput().write(m.getRegisters().getLongRegisters()[op1]);
+	}
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { op1 };
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " long register " + op1;
+	}
+
+	/*
+	 * Creates lout instructions from the operands s1.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "lout";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (!operands.areIntegers(1)) {
+				return null;
+			}
+			return new LoutInstruction(label, operands.getInteger(0));
+		}
+	}
+
+}
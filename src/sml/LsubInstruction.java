@@ -0,0 +1,64 @@
+package sml;
+
+/**
+ * An SML instruction which when given three parameters s1, s2 and r will
+ * subtract the contents of long register s2 from the contents of long
+ * register s1 and store the result in long register r.
+ */
+public class LsubInstruction extends Instruction {
+
+	private final int result;
+	private final int op1;
+	private final int op2;
+
+	public LsubInstruction(String label, String op) {
+		this(label, op, 0, 0, 0);
+	}
+
+	public LsubInstruction(String label, int result, int op1, int op2) {
+		this(label, "lsub", result, op1, op2);
+	}
+
+	private LsubInstruction(String label, String op, int result, int op1, int op2) {
+		super(label, op);
+		this.result = result;
+		this.op1 = op1;
+		this.op2 = op2;
+	}
+
+	@Override
+	public void execute(Machine m) {
+		long[] r = m.getRegisters().getLongRegisters();
+		r[result] = r[op1] - r[op2];
+	}
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { result, op1, op2 };
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " long register " + op1 + " - long register " + op2 + " to long register " + result;
+	}
+
+	/*
+	 * Creates lsub instructions from the operands r s1 s2.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "lsub";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (!operands.areIntegers(3)) {
+				return null;
+			}
+			return new LsubInstruction(label, operands.getInteger(0), operands.getInteger(1), operands.getInteger(2));
+		}
+	}
+
+}
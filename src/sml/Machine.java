@@ -1,11 +1,19 @@
 package sml;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import lombok.Data;
 
 /*
  * The machine language interpreter
+ *
+ * Once a machine has run a program given with setProgram, further runs of it
+ * allocate nothing on any engine, with or without limits, as long as the
+ * output sink does not: the registers, the program's Bytecode and compiled
+ * form are all kept. Profiled runs, and programs given with setProg, whose
+ * registers are checked and which are lowered again on every run, do
+ * allocate.
  */
 @Data
 public class Machine {
@@ -16,36 +24,98 @@ public class Machine {
 
 	// The SML program, consisting of prog.size() instructions, each
 	// of class Instruction (or one of its subclasses)
-	private ArrayList<Instruction> prog;
+	private List<Instruction> prog;
 
-	// The registers of the SML machine
+	// The Program that prog and labels come from, if they were loaded
+	// from one with setProgram
+
+	private Program program;
+
+	// The registers of the SML machine, which are kept and cleared for
+	// each run while their number stays registerCount
 	private Registers registers;
 
+	// The number of registers the machine has
+
+	private int registerCount;
+
 	// The program counter; it contains the index (in prog) of
 	// the next instruction to be executed.
 
 	private int pc;
 
+	// The engine used to execute the program
+
+	private Engine engine;
+
+	// Where out instructions print; it is flushed when a program ends
+
+	private OutputSink output;
+
+	// Where runs are recorded, or null to run without counting anything
+
+	private ExecutionProfile profile;
+
+	// The limits runs are stopped at, or null to run without limits
+
+	private ExecutionLimits limits;
+
+	// Whether the bytecode and compiler engines run the program as optimized
+	// by Optimizer. Runs with limits are never optimized, so they stop at
+	// and count the program's own instructions.
+
+	private boolean optimize;
+
+	// The profile of earlier runs by which the bytecode engine fuses the
+	// program's hot instruction sequences into superinstructions, or null to
+	// run without them. Fused programs are not also optimized, and runs with
+	// limits are never fused.
+
+	private ExecutionProfile fusionProfile;
+
+	// What is added to the output's position to give the position of the
+	// run in snapshots: 0 for a run begun at instruction 0, and for a resumed
+	// run the position of its snapshot less the output's position when it
+	// resumed, so that the positions of chained snapshots add up
+
+	private long outputOffset;
+
 	{
 		labels = new Labels();
 		prog = new ArrayList<>();
 		pc = 0;
+		engine = Engine.INTERPRETER;
+		output = new BufferedOutputSink(System.out);
+		registerCount = Registers.NUMBEROFREGISTERS;
+		optimize = true;
 	}
 
 	public static void main(String[] args) {
 
-		if (args.length != 1) {
-			System.out.println("Please specify name of SML program file");
+		if (args.length != 1 && args.length != 2) {
+			System.out.println("Please specify name of SML program file and optionally an engine (interpreter, block, bytecode or compiler) or profile");
 			return;
 		}
 
 		String smlFile = args[0];
 		Machine m = new Machine();
+		if (args.length == 2 && args[1].equals("profile")) {
+			m.setProfile(new ExecutionProfile());
+		} else if (args.length == 2) {
+			try {
+				m.setEngine(Engine.valueOf(args[1].toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				System.err.println("Unknown engine " + args[1]);
+				return;
+			}
+		}
 		Translator t = new Translator(smlFile);
-		if (!t.readAndTranslate(m.getLabels(), m.getProg())) {
+		Program program = t.translate();
+		if (program == null) {
 			System.err.println("Problem reading program file " + smlFile);
 			return;
 		}
+		m.setProgram(program);
 
 		System.out.println("Here is the program; it has " + m.getProg().size() + " instructions.");
 		System.out.println(m);
@@ -56,6 +126,10 @@ public class Machine {
 
 		System.out.println("Values of registers at program termination:");
 		System.out.println(m.getRegisters() + ".");
+		if (m.getProfile() != null) {
+			System.out.println("Execution profile:");
+			System.out.print(m.getProfile());
+		}
 	}
 
 	// Print the program
@@ -68,16 +142,255 @@ public class Machine {
 		return s.toString();
 	}
 
+	// Use program as this machine's program and labels. They are shared
+	// with every other machine executing program, not copied.
+
+	public void setProgram(Program program) {
+		this.program = program;
+		this.prog = program.getInstructions();
+		this.labels = program.getLabels();
+	}
+
+	public void setProg(List<Instruction> prog) {
+		this.program = null;
+		this.prog = prog;
+	}
+
 	// Execute the program in prog, beginning at instruction 0.
 	// Precondition: the program and its labels have been store properly.
 
 	public void execute() {
+		resetRegisters();
+		setPc(0);
+		setOutputOffset(0);
+		run();
+	}
+
+	// Execute the program in prog, beginning at instruction 0 with registers
+	// 0..initial.length-1 set to the values in initial and the rest 0.
+
+	public void execute(int[] initial) {
+		resetRegisters();
+		System.arraycopy(initial, 0, getRegisters().getRegisters(), 0, initial.length);
 		setPc(0);
-		setRegisters(new Registers());
+		setOutputOffset(0);
+		run();
+	}
+
+	// Continue the run recorded in snapshot: set the registers and pc to
+	// those in the snapshot and execute the program from there. The
+	// machine's register count becomes the snapshot's.
+	// Throws IllegalArgumentException if the snapshot was taken of a
+	// different program.
+
+	public void resume(Snapshot snapshot) {
+		if (snapshot.getFingerprint() != fingerprint() || snapshot.getPc() > getProg().size()) {
+			throw new IllegalArgumentException("The snapshot is of a different program");
+		}
+		setRegisterCount(snapshot.getRegisterCount());
+		resetRegisters();
+		snapshot.restore(getRegisters());
+		setPc(snapshot.getPc());
+		setOutputOffset(snapshot.getOutputPosition() - getOutput().getPosition());
+		run();
+	}
+
+	// = the state of the machine, to be resumed later; taken between runs,
+	// typically when a run has been stopped by its limits
+
+	public Snapshot snapshot() {
+		return new Snapshot(fingerprint(), getPc(), getRegisters(), getOutputOffset() + getOutput().getPosition());
+	}
+
+	private long fingerprint() {
+		return program != null ? program.getFingerprint() : Snapshot.fingerprint(getProg());
+	}
+
+	// Set every register to 0, reusing the registers of the last run if
+	// there are still registerCount of them.
+
+	private void resetRegisters() {
+		if (getRegisters() != null && getRegisters().size() == getRegisterCount()) {
+			getRegisters().clear();
+		} else {
+			setRegisters(new Registers(getRegisterCount()));
+		}
+	}
+
+	// Run the program from the pc.
+
+	private void run() {
+		int registerCount = getRegisters().getRegisters().length;
+		if (!hasValidRegisters(registerCount)) {
+			return;
+		}
+		try {
+			if (getProfile() != null) {
+				runChecked();
+			} else {
+				runOn(registerCount);
+			}
+		} finally {
+			getOutput().flush();
+		}
+	}
+
+	private void runOn(int registerCount) {
+		if (getEngine() == Engine.BYTECODE || getEngine() == Engine.COMPILER) {
+			// optimized, fused and compiled programs can only start at the start
+			int start = getPc();
+			boolean whole = getLimits() == null && start == 0;
+			Bytecode code = whole && getEngine() == Engine.BYTECODE && getFusionProfile() != null ? fuse(registerCount)
+					: lower(registerCount, isOptimize() && whole);
+			if (code != null) {
+				if (getLimits() != null) {
+					// compiled programs cannot be stopped, so limited runs
+					// use the bytecode engine
+					try {
+						code.execute(start, getRegisters().getRegisters(), getOutput(), getLimits());
+					} catch (ExecutionAbortedException e) {
+						setPc(e.getPc());
+						throw e;
+					}
+				} else {
+					CompiledProgram compiled = getEngine() == Engine.COMPILER && start == 0 ? JvmCompiler.compile(code) : null;
+					if (compiled != null) {
+						compiled.run(getRegisters().getRegisters(), getOutput());
+					} else {
+						code.execute(start, getRegisters().getRegisters(), getOutput());
+					}
+				}
+				setPc(getProg().size());
+				return;
+			}
+		}
+		if (getLimits() != null) {
+			runChecked();
+			return;
+		}
+		if (getEngine() == Engine.BLOCK) {
+			runBlocks(program != null ? program.getControlFlowGraph() : new ControlFlowGraph(getProg()));
+			return;
+		}
 		while (getPc() < getProg().size()) {
 			Instruction ins = getProg().get(getPc());
 			setPc(getPc() + 1);
 			ins.execute(this);
 		}
 	}
-}
\ No newline at end of file
+
+	// Run the program from the pc a basic block of cfg at a time. Only the
+	// last instruction of a block can branch, so the pc is set before it and
+	// read after it, and not at all for the rest of the block.
+
+	private void runBlocks(ControlFlowGraph cfg) {
+		List<Instruction> prog = getProg();
+		int blocks = cfg.size();
+		int i = getPc();
+		int block = i < prog.size() ? cfg.blockOf(i) : blocks;
+		try {
+			while (block != blocks) {
+				int last = cfg.end(block) - 1;
+				for (; i != last; i++) {
+					prog.get(i).execute(this);
+				}
+				setPc(last + 1);
+				prog.get(last).execute(this);
+				block = getPc() == last + 1 ? block + 1 : cfg.blockOf(getPc());
+				i = getPc();
+			}
+		} catch (RuntimeException e) {
+			// leave the pc after the failed instruction, as the interpreter does
+			setPc(i + 1);
+			throw e;
+		}
+	}
+
+	// = the program as Bytecode for registerCount registers, optimized if
+	// optimized is true, or null if it has no Bytecode form
+
+	private Bytecode lower(int registerCount, boolean optimized) {
+		if (program != null) {
+			return optimized ? program.getOptimizedBytecode(registerCount) : program.getBytecode(registerCount);
+		}
+		Bytecode code = Bytecode.compile(getProg(), registerCount);
+		return code != null && optimized ? Optimizer.optimize(code) : code;
+	}
+
+	// = the program as Bytecode for registerCount registers with the hot
+	// sequences of the fusion profile fused, or null if it has no Bytecode
+	// form
+
+	private Bytecode fuse(int registerCount) {
+		if (program != null) {
+			return program.getFusedBytecode(registerCount, getFusionProfile());
+		}
+		Bytecode code = Bytecode.compile(getProg(), registerCount);
+		return code != null ? Superinstructions.fuse(code, getFusionProfile()) : null;
+	}
+
+	// Interpret the program, counting in the profile (if there is one) how
+	// many times each instruction is executed and branches, and stopping it
+	// when it exceeds the limits (if there are any). Profiled runs are always
+	// interpreted, as the other engines do not run instruction by
+	// instruction.
+
+	private void runChecked() {
+		int size = getProg().size();
+		ExecutionProfile profile = getProfile();
+		ExecutionLimits limits = getLimits();
+		long[] counts = profile != null ? new long[size] : null;
+		long[] taken = profile != null ? new long[size] : null;
+		long maxSteps = limits != null ? limits.getMaxSteps() : Long.MAX_VALUE;
+		long deadline = limits != null ? limits.deadline() : 0;
+		long steps = 0;
+		int branches = 0;
+		long start = System.nanoTime();
+		try {
+			while (getPc() < size) {
+				int index = getPc();
+				Instruction ins = getProg().get(index);
+				setPc(index + 1);
+				steps++;
+				if (counts != null) {
+					counts[index]++;
+				}
+				ins.execute(this);
+				if (getPc() == index + 1) {
+					continue;
+				}
+				if (taken != null) {
+					taken[index]++;
+				}
+				if (limits != null && getPc() <= index
+						&& (steps > maxSteps || (++branches & (ExecutionLimits.CHECK_INTERVAL - 1)) == 0)) {
+					ExecutionAbortedException.Reason reason = limits.check(steps, deadline);
+					if (reason != null) {
+						throw new ExecutionAbortedException(reason, getPc(), steps, getRegisters().getRegisters().clone());
+					}
+				}
+			}
+		} finally {
+			if (profile != null) {
+				profile.record(getProg(), counts, taken, System.nanoTime() - start);
+			}
+		}
+	}
+
+	// Check once, before running, that every instruction only uses registers
+	// the machine has, so instructions can access them without checks.
+	// return "all registers are valid", reporting the lines that are not
+	private boolean hasValidRegisters(int registerCount) {
+		if (program != null && program.getRegisterBound() <= registerCount) {
+			return true;
+		}
+		boolean valid = true;
+		for (int i = 0; i != getProg().size(); i++) {
+			if (!getProg().get(i).hasValidRegisters(registerCount)) {
+				System.err.format("Invalid register at line %d (registers are 0 to %d).%n", i + 1, registerCount - 1);
+				valid = false;
+			}
+		}
+		return valid;
+	}
+}
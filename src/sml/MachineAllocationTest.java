@@ -0,0 +1,130 @@
+package sml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MachineAllocationTest {
+
+	private static final int RUNS = 100;
+
+	private static final int ROUNDS = 5;
+
+	private com.sun.management.ThreadMXBean threads;
+	private Program program;
+
+	@Before
+	public void setup() {
+		threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+		// a loop of 1000 iterations using every core opcode
+		List<Instruction> instructions = new ArrayList<>();
+		instructions.add(new LinInstruction("f0", 20, 1000));
+		instructions.add(new LinInstruction("f1", 21, 1));
+		instructions.add(new LinInstruction("f2", 22, 1));
+		instructions.add(new AddInstruction("f3", 21, 21, 20));
+		instructions.add(new MulInstruction("f4", 23, 21, 22));
+		instructions.add(new DivInstruction("f5", 24, 23, 22));
+		instructions.add(new SubInstruction("f6", 20, 20, 22));
+		instructions.add(new BnzInstruction("f7", 20, "f3"));
+		instructions.add(new OutInstruction("f8", 24));
+		Labels labels = new Labels();
+		for (Instruction instruction : instructions) {
+			labels.addLabel(instruction.label);
+		}
+		program = new Program("loop", instructions, labels);
+	}
+
+	@Test
+	public void executeWithoutAllocatingOnEveryEngine() {
+		for (Engine engine : Engine.values()) {
+			Machine m = machine(engine);
+			assertEquals(engine.toString(), 0, allocatedByRuns(m));
+			assertEquals(500500, m.getRegisters().getRegister(24));
+		}
+	}
+
+	@Test
+	public void executeDeclinedProgramWithoutAllocating() {
+		// a loop too large for JvmCompiler, which the compiler engine leaves to
+		// the bytecode engine
+		List<Instruction> instructions = new ArrayList<>();
+		instructions.add(new LinInstruction("f0", 20, 10));
+		instructions.add(new LinInstruction("f1", 22, 1));
+		for (int i = 2; i != 3002; i++) {
+			instructions.add(new AddInstruction("f" + i, 21, 21, 20));
+		}
+		instructions.add(new SubInstruction("f3002", 20, 20, 22));
+		instructions.add(new BnzInstruction("f3003", 20, "f2"));
+		instructions.add(new OutInstruction("f3004", 21));
+		Labels labels = new Labels();
+		for (Instruction instruction : instructions) {
+			labels.addLabel(instruction.label);
+		}
+		program = new Program("large", instructions, labels);
+
+		Machine m = machine(Engine.COMPILER);
+		assertEquals(0, allocatedByRuns(m));
+		assertNull(JvmCompiler.compile(program.getOptimizedBytecode(Registers.NUMBEROFREGISTERS)));
+		assertEquals(3000 * (10 + 9 + 8 + 7 + 6 + 5 + 4 + 3 + 2), m.getRegisters().getRegister(21));
+	}
+
+	@Test
+	public void executeWithLimitsWithoutAllocating() {
+		for (Engine engine : Engine.values()) {
+			Machine m = machine(engine);
+			ExecutionLimits limits = new ExecutionLimits();
+			limits.setMaxSteps(1000000);
+			limits.setTimeout(1, TimeUnit.MINUTES);
+			m.setLimits(limits);
+			assertEquals(engine.toString(), 0, allocatedByRuns(m));
+		}
+	}
+
+	private Machine machine(Engine engine) {
+		Machine m = new Machine();
+		m.setProgram(program);
+		m.setEngine(engine);
+		m.setOutput(new BufferedOutputSink(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		return m;
+	}
+
+	// = the fewest bytes allocated by RUNS executions of m's program in any
+	// of ROUNDS rounds, after the first execution has created everything that
+	// is kept between runs. The JVM itself occasionally allocates on the
+	// thread, but not in every round, whereas an allocation made by every run
+	// shows in all of them.
+
+	private long allocatedByRuns(Machine m) {
+		m.execute();
+		long id = Thread.currentThread().getId();
+		long least = Long.MAX_VALUE;
+		for (int round = 0; round != ROUNDS; round++) {
+			long start = threads.getThreadAllocatedBytes(id);
+			long overhead = threads.getThreadAllocatedBytes(id) - start;
+			start = threads.getThreadAllocatedBytes(id);
+			for (int run = 0; run != RUNS; run++) {
+				m.execute();
+			}
+			least = Math.min(least, threads.getThreadAllocatedBytes(id) - start - overhead);
+		}
+		return least;
+	}
+
+}
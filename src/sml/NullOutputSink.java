@@ -0,0 +1,30 @@
+package sml;
+
+/*
+ * An OutputSink that discards everything written to it, for measuring
+ * programs without their output.
+ */
+public class NullOutputSink implements OutputSink {
+
+	private long position;
+
+	@Override
+	public void write(int value) {
+		position++;
+	}
+
+	@Override
+	public void write(long value) {
+		position++;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public long getPosition() {
+		return position;
+	}
+
+}
@@ -0,0 +1,303 @@
+package sml;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A translated program in a compact binary form, which is loaded by mapping
+ * the file into memory and run straight from the mapping. Loading only reads
+ * the header, so it takes the same time however large the program is, and
+ * every JVM on a host running the same file shares its pages in the page
+ * cache. No Instruction is created unless toProgram is called.
+ *
+ * File format (big-endian):
+ * <pre>
+ * int       MAGIC
+ * int       VERSION
+ * int       n, the number of instructions
+ * int       m, the number of code slots
+ * int       the number of registers the program needs
+ * int       s, the number of bytes of label text
+ * int[m]    the Bytecode, with branch targets as code offsets
+ * int[n+1]  the code offset of each instruction, then m
+ * int[n]    the line number of each instruction
+ * int[n+1]  the offset in the label text of each instruction's label, then s
+ * byte[s]   the label text, in UTF-8
+ * </pre>
+ *
+ * Instruction i is numbered i + 1, which is the line of the source it was
+ * translated from, as Translator translates each line into one instruction.
+ *
+ * Only the header is checked when a file is loaded; there is no checksum.
+ * The rest is checked as it runs: an opcode that execute does not run or a
+ * branch out of the code fails the run with an IllegalStateException, and a
+ * register beyond those the run was given or an entry beyond its table fails
+ * it with an IndexOutOfBoundsException. Other damage, such as a changed
+ * constant or a branch into the middle of an instruction, goes undetected
+ * and the program runs differently. toProgram checks that every instruction
+ * and branch target is sound before it creates any Instruction. Programs with
+ * instructions that have no Bytecode form cannot be written.
+ */
+public final class ObjectFile {
+
+	private static final int MAGIC = 0x534d4c4f; // "SMLO"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 6 * 4;
+
+	private final String name;
+	private final int size;
+	private final int registerBound;
+	private final IntBuffer code;
+	private final IntBuffer offsets;
+	private final IntBuffer lineNumbers;
+	private final IntBuffer labelOffsets;
+	private final ByteBuffer labels;
+
+	private ObjectFile(String name, ByteBuffer file, int size, int slots, int registerBound, int labelBytes) {
+		this.name = name;
+		this.size = size;
+		this.registerBound = registerBound;
+		int offset = HEADER_SIZE;
+		this.code = slice(file, offset, 4 * slots).asIntBuffer();
+		offset += 4 * slots;
+		this.offsets = slice(file, offset, 4 * (size + 1)).asIntBuffer();
+		offset += 4 * (size + 1);
+		this.lineNumbers = slice(file, offset, 4 * size).asIntBuffer();
+		offset += 4 * size;
+		this.labelOffsets = slice(file, offset, 4 * (size + 1)).asIntBuffer();
+		offset += 4 * (size + 1);
+		this.labels = slice(file, offset, labelBytes);
+	}
+
+	// Write program to file as an object file, numbering instruction i as
+	// line i + 1.
+	// return "the file was written", reporting why not
+
+	public static boolean write(Program program, Path file) {
+		Bytecode bytecode = Bytecode.compile(program.getInstructions(), Integer.MAX_VALUE);
+		if (bytecode == null) {
+			System.err.format("Error writing object file %s: the program has instructions with no Bytecode form.%n", file);
+			return false;
+		}
+		Labels labels = program.getLabels();
+		byte[][] text = new byte[labels.size()][];
+		int labelBytes = 0;
+		for (int i = 0; i != text.length; i++) {
+			text[i] = labels.get(i).getBytes(StandardCharsets.UTF_8);
+			labelBytes += text[i].length;
+		}
+		try {
+			Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), "object", ".tmp");
+			try {
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+					int[] code = bytecode.getCode();
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeInt(bytecode.size());
+					out.writeInt(code.length);
+					out.writeInt(program.getRegisterBound());
+					out.writeInt(labelBytes);
+					for (int slot : code) {
+						out.writeInt(slot);
+					}
+					for (int i = 0; i <= bytecode.size(); i++) {
+						out.writeInt(bytecode.offsetOf(i));
+					}
+					for (int i = 0; i != bytecode.size(); i++) {
+						out.writeInt(i + 1);
+					}
+					int offset = 0;
+					for (byte[] label : text) {
+						out.writeInt(offset);
+						offset += label.length;
+					}
+					out.writeInt(offset);
+					for (byte[] label : text) {
+						out.write(label);
+					}
+				}
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporary);
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.format("Error writing object file %s: %s.%n", file, e);
+			return false;
+		}
+	}
+
+	// = the object file at file, mapped into memory, or null if it cannot be
+	// read or is not an object file, reporting why
+
+	public static ObjectFile load(Path file) {
+		ByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				System.err.format("Error loading object file %s: too large to map in one piece.%n", file);
+				return null;
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			System.err.format("Error loading object file %s: %s.%n", file, e);
+			return null;
+		}
+		if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+			System.err.format("Error loading object file %s: not an object file.%n", file);
+			return null;
+		}
+		int size = mapped.getInt(8);
+		int slots = mapped.getInt(12);
+		int registerBound = mapped.getInt(16);
+		int labelBytes = mapped.getInt(20);
+		long expected = HEADER_SIZE + 4L * slots + 4L * (3L * size + 2) + labelBytes;
+		if (size < 0 || slots < 0 || labelBytes < 0 || registerBound < 0 || expected != mapped.capacity()) {
+			System.err.format("Error loading object file %s: damaged.%n", file);
+			return null;
+		}
+		return new ObjectFile(file.toString(), mapped, size, slots, registerBound, labelBytes);
+	}
+
+	// = the number of instructions in the program
+
+	public int size() {
+		return size;
+	}
+
+	// = the number of registers a machine needs to run the program
+
+	public int getRegisterBound() {
+		return registerBound;
+	}
+
+	// = the label of instruction index
+
+	public String getLabel(int index) {
+		int start = labelOffsets.get(index);
+		byte[] label = new byte[labelOffsets.get(index + 1) - start];
+		for (int i = 0; i != label.length; i++) {
+			label[i] = labels.get(start + i);
+		}
+		return new String(label, StandardCharsets.UTF_8);
+	}
+
+	// = the line number of instruction index, which is the line of the
+	// source it was translated from
+
+	public int getLineNumber(int index) {
+		return lineNumbers.get(index);
+	}
+
+	// = the program as a Program, creating an Instruction for every line, or
+	// null if the file is damaged
+
+	public Program toProgram() {
+		int[] slots = new int[code.limit()];
+		code.get(slots);
+		code.rewind();
+		Bytecode bytecode = Bytecode.wrap(slots);
+		if (bytecode == null || bytecode.size() != size) {
+			System.err.format("Error loading object file %s: damaged.%n", name);
+			return null;
+		}
+		Labels labels = new Labels();
+		for (int i = 0; i != size; i++) {
+			labels.addLabel(getLabel(i));
+		}
+		Instruction[] instructions = new Instruction[size];
+		try {
+			for (int i = 0; i != size; i++) {
+				instructions[i] = bytecode.decode(i, labels);
+			}
+			return new Program(name, instructions, labels);
+		} catch (RuntimeException e) {
+			System.err.format("Error loading object file %s: %s.%n", name, e);
+			return null;
+		}
+	}
+
+	// Run the program from its first instruction on registers r, printing
+	// its output to out, which is flushed when it ends.
+	// Throws IllegalArgumentException if there are too few registers.
+
+	public void execute(int[] r, OutputSink out) {
+		execute(0, r, out);
+	}
+
+	// Run the program from instruction index on registers r, printing its
+	// output to out, which is flushed when it ends.
+	// Throws IllegalArgumentException if there are too few registers.
+
+	public void execute(int index, int[] r, OutputSink out) {
+		if (r.length < registerBound) {
+			throw new IllegalArgumentException("The program needs " + registerBound + " registers");
+		}
+		final IntBuffer code = this.code;
+		final int end = code.limit();
+		int pc = offsets.get(index);
+		try {
+			while (pc < end) {
+				switch (code.get(pc)) {
+				case Bytecode.ADD:
+					r[code.get(pc + 1)] = r[code.get(pc + 2)] + r[code.get(pc + 3)];
+					pc += 4;
+					break;
+				case Bytecode.SUB:
+					r[code.get(pc + 1)] = r[code.get(pc + 2)] - r[code.get(pc + 3)];
+					pc += 4;
+					break;
+				case Bytecode.MUL:
+					r[code.get(pc + 1)] = r[code.get(pc + 2)] * r[code.get(pc + 3)];
+					pc += 4;
+					break;
+				case Bytecode.DIV:
+					r[code.get(pc + 1)] = r[code.get(pc + 2)] / r[code.get(pc + 3)];
+					pc += 4;
+					break;
+				case Bytecode.OUT:
+					out.write(r[code.get(pc + 1)]);
+					pc += 2;
+					break;
+				case Bytecode.LIN:
+					r[code.get(pc + 1)] = code.get(pc + 2);
+					pc += 3;
+					break;
+				case Bytecode.BNZ:
+					if (r[code.get(pc + 1)] != 1) {
+						int target = code.get(pc + 2);
+						if (target < 0 || target >= end) {
+							throw new IllegalStateException("Invalid branch target " + target + " at offset " + pc);
+						}
+						pc = target;
+					} else {
+						pc += 3;
+					}
+					break;
+				default:
+					throw new IllegalStateException("Invalid opcode " + code.get(pc) + " at offset " + pc);
+				}
+			}
+		} finally {
+			out.flush();
+		}
+	}
+
+	// = the length bytes of file from offset on
+
+	private static ByteBuffer slice(ByteBuffer file, int offset, int length) {
+		ByteBuffer slice = file.duplicate();
+		slice.position(offset);
+		slice.limit(offset + length);
+		return slice.slice();
+	}
+
+}
@@ -0,0 +1,180 @@
+package sml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObjectFileTest {
+
+	private static final int REGISTERS = 32;
+	private static final int CODE = 6 * 4; // the offset of the code in a file
+
+	private Path file;
+
+	@Before
+	public void setup() throws IOException {
+		file = Files.createTempFile("sml", ".smlo");
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void runFactorialFromObjectFile() {
+		assertTrue(new Translator("code.sml").translateTo(file));
+		ObjectFile object = ObjectFile.load(file);
+		assertNotNull(object);
+		assertEquals(7, object.size());
+		assertEquals(23, object.getRegisterBound());
+		assertEquals("f3", object.getLabel(3));
+		assertEquals(4, object.getLineNumber(3));
+
+		int[] r = new int[REGISTERS];
+		CollectingOutputSink output = new CollectingOutputSink();
+		object.execute(r, output);
+		assertEquals(720, r[21]);
+		assertEquals("720" + System.lineSeparator(), output.toString());
+	}
+
+	@Test
+	public void loadProgramFromObjectFile() {
+		Program program = new Translator("code.sml").translate();
+		assertTrue(ObjectFile.write(program, file));
+		Program loaded = ObjectFile.load(file).toProgram();
+		assertEquals(program.toString(), loaded.toString());
+		assertEquals(program.getLabels().toString(), loaded.getLabels().toString());
+	}
+
+	@Test
+	public void rejectDamagedObjectFile() throws IOException {
+		assertTrue(new Translator("code.sml").translateTo(file));
+		byte[] bytes = Files.readAllBytes(file);
+		PrintStream err = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(errors, true));
+		try {
+			Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+			assertNull(ObjectFile.load(file));
+			bytes[0]++;
+			Files.write(file, bytes);
+			assertNull(ObjectFile.load(file));
+		} finally {
+			System.setErr(err);
+		}
+		assertTrue(errors.toString().contains("damaged"));
+		assertTrue(errors.toString().contains("not an object file"));
+	}
+
+	@Test
+	public void failRunOfDamagedCode() throws IOException {
+		assertTrue(new Translator("code.sml").translateTo(file));
+		byte[] bytes = Files.readAllBytes(file);
+		// the bnz of f5, at code offset 17, branching out of the code
+		Files.write(file, withInt(bytes, CODE + 4 * 19, 1000));
+		try {
+			ObjectFile.load(file).execute(new int[REGISTERS], new NullOutputSink());
+			fail("Expected the branch to be rejected");
+		} catch (IllegalStateException e) {
+			assertEquals("Invalid branch target 1000 at offset 17", e.getMessage());
+		}
+		// the out of f6, at code offset 20, printing a register the run lacks
+		Files.write(file, withInt(bytes, CODE + 4 * 21, REGISTERS));
+		try {
+			ObjectFile.load(file).execute(new int[REGISTERS], new NullOutputSink());
+			fail("Expected the register to be rejected");
+		} catch (IndexOutOfBoundsException e) {
+			// rejected
+		}
+		// an opcode that is not run
+		Files.write(file, withInt(bytes, CODE, Bytecode.ARITH2));
+		try {
+			ObjectFile.load(file).execute(new int[REGISTERS], new NullOutputSink());
+			fail("Expected the opcode to be rejected");
+		} catch (IllegalStateException e) {
+			assertEquals("Invalid opcode 9 at offset 0", e.getMessage());
+		}
+	}
+
+	// = bytes with the int at offset replaced by value
+
+	private static byte[] withInt(byte[] bytes, int offset, int value) {
+		byte[] changed = bytes.clone();
+		ByteBuffer.wrap(changed).putInt(offset, value);
+		return changed;
+	}
+
+	@Test
+	public void refuseProgramWithoutBytecode() {
+		Labels labels = new Labels();
+		labels.addLabel("f0");
+		Program program = new Program("long", Arrays.asList((Instruction) new LlinInstruction("f0", 1, 2)), labels);
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new ByteArrayOutputStream(), true));
+		try {
+			assertFalse(ObjectFile.write(program, file));
+		} finally {
+			System.setErr(err);
+		}
+	}
+
+	@Test
+	public void runRandomProgramsLikeBytecode() {
+		Random random = new Random(29);
+		for (int n = 0; n != 200; n++) {
+			List<Instruction> instructions = RegisterAllocationTest.randomProgram(random);
+			Labels labels = new Labels();
+			for (Instruction instruction : instructions) {
+				labels.addLabel(instruction.label);
+			}
+			Program program = new Program("random", instructions, labels);
+			assertTrue(ObjectFile.write(program, file));
+			ObjectFile object = ObjectFile.load(file);
+			int[] initial = new int[REGISTERS];
+			for (int r = 0; r != REGISTERS; r++) {
+				initial[r] = random.nextInt(7) - 2;
+			}
+
+			int[] expected = initial.clone();
+			CollectingOutputSink expectedOutput = new CollectingOutputSink();
+			boolean expectedFailure = false;
+			try {
+				program.getBytecode(REGISTERS).execute(expected, expectedOutput);
+			} catch (ArithmeticException e) {
+				expectedFailure = true;
+			}
+			int[] actual = initial.clone();
+			CollectingOutputSink actualOutput = new CollectingOutputSink();
+			boolean actualFailure = false;
+			try {
+				object.execute(actual, actualOutput);
+			} catch (ArithmeticException e) {
+				actualFailure = true;
+			}
+
+			assertEquals(program.toString(), expectedFailure, actualFailure);
+			assertArrayEquals(program.toString(), expected, actual);
+			assertEquals(program.toString(), expectedOutput.toString(), actualOutput.toString());
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package sml;
+
+import java.util.Arrays;
+
+/*
+ * The operands of an instruction being translated. Each operand is kept as
+ * it was written and, when it is an integer literal, as its int value too.
+ * An instance can be cleared and reused for every line of a program.
+ */
+public class Operands {
+
+	private String[] tokens;
+	private int[] values;
+	private boolean[] integers;
+	private int size;
+
+	{
+		tokens = new String[4];
+		values = new int[4];
+		integers = new boolean[4];
+	}
+
+	// = operands holding tokens (none if tokens is null)
+
+	public static Operands of(String... tokens) {
+		Operands operands = new Operands();
+		if (tokens != null) {
+			for (String token : tokens) {
+				operands.add(token);
+			}
+		}
+		return operands;
+	}
+
+	// Remove all operands.
+
+	public void clear() {
+		Arrays.fill(tokens, 0, size, null);
+		size = 0;
+	}
+
+	// Add token as the next operand.
+
+	public void add(String token) {
+		grow();
+		tokens[size] = token;
+		integers[size] = parseInteger(token, size);
+		size++;
+	}
+
+	// Add value as the next operand.
+
+	public void addInteger(int value) {
+		grow();
+		values[size] = value;
+		integers[size] = true;
+		size++;
+	}
+
+	// Add word, which is not an int literal, as the next operand.
+
+	public void addWord(String word) {
+		grow();
+		tokens[size] = word;
+		integers[size] = false;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// = "operand i is an int literal"
+
+	public boolean isInteger(int i) {
+		return integers[i];
+	}
+
+	// = the value of operand i
+	// Precondition: isInteger(i)
+
+	public int getInteger(int i) {
+		return values[i];
+	}
+
+	// = "operand i is a long literal" (which every int literal is)
+
+	public boolean isLong(int i) {
+		return integers[i] || isLongLiteral(tokens[i]);
+	}
+
+	// = the long value of operand i
+	// Precondition: isLong(i)
+
+	public long getLong(int i) {
+		return integers[i] ? values[i] : Long.parseLong(tokens[i]);
+	}
+
+	// = operand i as it was written (in its canonical form for int
+	// literals that were read as values)
+
+	public String getString(int i) {
+		return tokens[i] == null ? Integer.toString(values[i]) : tokens[i];
+	}
+
+	// = "there are exactly count operands and all are int literals"
+
+	public boolean areIntegers(int count) {
+		if (size != count) {
+			return false;
+		}
+		for (int i = 0; i != size; i++) {
+			if (!integers[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("[");
+		for (int i = 0; i != size; i++) {
+			s.append(i == 0 ? "" : ", ").append(getString(i));
+		}
+		return s.append("]").toString();
+	}
+
+	private void grow() {
+		if (size == tokens.length) {
+			tokens = Arrays.copyOf(tokens, 2 * size);
+			values = Arrays.copyOf(values, 2 * size);
+			integers = Arrays.copyOf(integers, 2 * size);
+		}
+	}
+
+	// = "token is a decimal long literal (as accepted by Long.parseLong)",
+	// checked the way Long.parseLong does, by accumulating negatively
+
+	private static boolean isLongLiteral(String token) {
+		int length = token.length();
+		boolean negative = length > 1 && token.charAt(0) == '-';
+		int start = negative || length > 1 && token.charAt(0) == '+' ? 1 : 0;
+		if (length == start) {
+			return false;
+		}
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long value = 0;
+		for (int j = start; j != length; j++) {
+			char c = token.charAt(j);
+			if (c < '0' || c > '9' || value < limit / 10) {
+				return false;
+			}
+			value *= 10;
+			if (value < limit + (c - '0')) {
+				return false;
+			}
+			value -= c - '0';
+		}
+		return true;
+	}
+
+	// Store token's value in values[i] if it is a decimal int literal
+	// (as accepted by Integer.parseInt) and return whether it was one.
+
+	private boolean parseInteger(String token, int i) {
+		int length = token.length();
+		int start = length > 1 && (token.charAt(0) == '-' || token.charAt(0) == '+') ? 1 : 0;
+		if (length == start || length - start > 10) {
+			return false;
+		}
+		long value = 0;
+		for (int j = start; j != length; j++) {
+			char c = token.charAt(j);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+			value = 10 * value + (c - '0');
+		}
+		if (token.charAt(0) == '-') {
+			value = -value;
+		}
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			return false;
+		}
+		values[i] = (int) value;
+		return true;
+	}
+
+}
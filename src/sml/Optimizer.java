@@ -0,0 +1,465 @@
+package sml;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Rewrites Bytecode into equivalent Bytecode that dispatches fewer
+ * instructions. Three passes run in turn:
+ *
+ * <ol>
+ * <li>Constant propagation over the control flow graph. Arithmetic on
+ * registers known to hold constants becomes <code>lin</code>, arithmetic
+ * with one constant operand becomes ADDI, a <code>lin</code> of the value a
+ * register already holds is removed, as is a <code>bnz</code> that never
+ * branches, and blocks that can no longer be reached are removed.</li>
+ * <li>Dead store elimination. A store is removed if the register is written
+ * again before it is read.</li>
+ * <li>Fusion of an ADDI with the <code>bnz</code> testing its result, the
+ * usual end of a counted loop, into one ADDI_BNZ.</li>
+ * </ol>
+ *
+ * Every register is treated as read when the program ends and before any
+ * instruction that can fail, so the registers and output a program leaves
+ * are the same whichever form runs. Branches that targeted a removed
+ * instruction target the next one kept.
+ */
+public class Optimizer {
+
+	private final Bytecode code;
+	private final int[] slots;
+	private final int registers;
+
+	// The replacement for each instruction in bytecode form, with a branch
+	// target as an instruction index; null for no change and REMOVED to
+	// remove the instruction
+
+	private final int[][] replacements;
+
+	private static final int[] REMOVED = new int[0];
+
+	private Optimizer(Bytecode code) {
+		this.code = code;
+		this.slots = code.getCode();
+		this.replacements = new int[code.size()][];
+		int registers = 0;
+		for (int i = 0; i != code.size(); i++) {
+			registers = Math.max(registers, code.definedRegister(i) + 1);
+			for (int register : code.usedRegisters(i)) {
+				registers = Math.max(registers, register + 1);
+			}
+		}
+		this.registers = registers;
+	}
+
+	// = code optimized; code itself if there is nothing to optimize or it has
+	// superinstructions, which are not optimized
+
+	public static Bytecode optimize(Bytecode code) {
+		if (code.hasSuperinstructions()) {
+			return code;
+		}
+		code = new Optimizer(code).foldConstants();
+		Bytecode previous;
+		do {
+			previous = code;
+			code = new Optimizer(code).removeDeadStores();
+		} while (code != previous);
+		return new Optimizer(code).fuseBranches();
+	}
+
+	// Pass 1: propagate constants and remove unreachable blocks.
+
+	private Bytecode foldConstants() {
+		ControlFlowGraph cfg = new ControlFlowGraph(code);
+		int blocks = cfg.size();
+		if (blocks == 0) {
+			return code;
+		}
+		// the constants known at the start of each block; null until reached
+		Constants[] entries = new Constants[blocks];
+		entries[0] = new Constants(registers);
+		Deque<Integer> work = new ArrayDeque<>();
+		work.add(0);
+		while (!work.isEmpty()) {
+			int block = work.poll();
+			Constants state = entries[block].copy();
+			for (int i = cfg.first(block); i != cfg.end(block); i++) {
+				state.apply(i);
+			}
+			for (int successor : feasibleSuccessors(cfg, block, state)) {
+				if (entries[successor] == null) {
+					entries[successor] = state.copy();
+					work.add(successor);
+				} else if (entries[successor].meet(state)) {
+					work.add(successor);
+				}
+			}
+		}
+
+		for (int block = 0; block != blocks; block++) {
+			if (entries[block] == null) {
+				for (int i = cfg.first(block); i != cfg.end(block); i++) {
+					replacements[i] = REMOVED;
+				}
+				continue;
+			}
+			Constants state = entries[block].copy();
+			for (int i = cfg.first(block); i != cfg.end(block); i++) {
+				replacements[i] = state.fold(i);
+				state.apply(i);
+			}
+		}
+		return rewrite();
+	}
+
+	// = the successors of block that control can reach, given the constants
+	// known at its end
+
+	private int[] feasibleSuccessors(ControlFlowGraph cfg, int block, Constants state) {
+		int last = cfg.end(block) - 1;
+		int[] successors = cfg.successors(block);
+		if (successors.length != 2 || code.opcodeOf(last) != Bytecode.BNZ) {
+			return successors;
+		}
+		int tested = slots[code.offsetOf(last) + 1];
+		if (!state.known[tested]) {
+			return successors;
+		}
+		// successors are the next block then the target
+		return state.values[tested] == 1 ? new int[] { successors[0] } : new int[] { successors[1] };
+	}
+
+	// Pass 2: remove stores to registers that are written again before they
+	// are read.
+
+	private Bytecode removeDeadStores() {
+		ControlFlowGraph cfg = new ControlFlowGraph(code);
+		int blocks = cfg.size();
+		BitSet[] liveIn = new BitSet[blocks];
+		for (int block = 0; block != blocks; block++) {
+			liveIn[block] = new BitSet(registers);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int block = blocks - 1; block >= 0; block--) {
+				BitSet live = liveOut(cfg, block, liveIn);
+				for (int i = cfg.end(block) - 1; i >= cfg.first(block); i--) {
+					transfer(i, live);
+				}
+				if (!live.equals(liveIn[block])) {
+					liveIn[block] = live;
+					changed = true;
+				}
+			}
+		}
+
+		boolean removed = false;
+		for (int block = 0; block != blocks; block++) {
+			BitSet live = liveOut(cfg, block, liveIn);
+			for (int i = cfg.end(block) - 1; i >= cfg.first(block); i--) {
+				if (isRemovableStore(i) && !live.get(code.definedRegister(i))) {
+					replacements[i] = REMOVED;
+					removed = true;
+					continue;
+				}
+				transfer(i, live);
+			}
+		}
+		return removed ? rewrite() : code;
+	}
+
+	// = the registers live at the end of block
+
+	private BitSet liveOut(ControlFlowGraph cfg, int block, BitSet[] liveIn) {
+		BitSet live = new BitSet(registers);
+		if (cfg.isExit(block)) {
+			live.set(0, registers);
+		}
+		for (int successor : cfg.successors(block)) {
+			live.or(liveIn[successor]);
+		}
+		return live;
+	}
+
+	// Change live from the registers live after instruction i to those live
+	// before it.
+
+	private void transfer(int i, BitSet live) {
+		if (code.canFail(i)) {
+			live.set(0, registers);
+			return;
+		}
+		int defined = code.definedRegister(i);
+		if (defined != -1) {
+			live.clear(defined);
+		}
+		for (int register : code.usedRegisters(i)) {
+			live.set(register);
+		}
+	}
+
+	// = whether instruction i only stores a value, so it can be removed if
+	// the value is never read
+
+	private boolean isRemovableStore(int i) {
+		switch (code.opcodeOf(i)) {
+		case Bytecode.ADD:
+		case Bytecode.SUB:
+		case Bytecode.MUL:
+		case Bytecode.LIN:
+		case Bytecode.ADDI:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// Pass 3: fuse each ADDI followed by a bnz of its result into ADDI_BNZ.
+
+	private Bytecode fuseBranches() {
+		ControlFlowGraph cfg = new ControlFlowGraph(code);
+		boolean fused = false;
+		for (int i = 0; i + 1 < code.size(); i++) {
+			int pc = code.offsetOf(i);
+			int next = code.offsetOf(i + 1);
+			// the bnz must not start a block, so nothing else reaches it
+			if (slots[pc] == Bytecode.ADDI && slots[next] == Bytecode.BNZ && slots[next + 1] == slots[pc + 1]
+					&& cfg.first(cfg.blockOf(i + 1)) != i + 1) {
+				replacements[i] = new int[] { Bytecode.ADDI_BNZ, slots[pc + 1], slots[pc + 2], slots[pc + 3],
+						code.targetOf(i + 1) };
+				replacements[i + 1] = REMOVED;
+				fused = true;
+				i++;
+			}
+		}
+		return fused ? rewrite() : code;
+	}
+
+	// = the code with the replacements made
+
+	private Bytecode rewrite() {
+		int size = code.size();
+		int[][] instructions = new int[size][];
+		for (int i = 0; i != size; i++) {
+			instructions[i] = replacements[i] != null ? replacements[i] : original(i);
+		}
+		// a branch to a removed instruction goes to the next one kept, so
+		// keep the last instruction branched to if none follows it
+		boolean restored;
+		do {
+			restored = false;
+			for (int i = 0; i != size; i++) {
+				int slot = instructions[i].length == 0 ? -1 : Bytecode.targetSlot(instructions[i][0]);
+				if (slot != -1 && nextKept(instructions, instructions[i][slot]) == size) {
+					instructions[instructions[i][slot]] = original(instructions[i][slot]);
+					restored = true;
+				}
+			}
+		} while (restored);
+
+		int[] indexes = new int[size + 1];
+		int count = 0;
+		int length = 0;
+		for (int i = 0; i != size; i++) {
+			indexes[i] = count;
+			if (instructions[i].length != 0) {
+				count++;
+				length += instructions[i].length;
+			}
+		}
+		indexes[size] = count;
+		int[] offsets = new int[count + 1];
+		int[] result = new int[length];
+		int pc = 0;
+		for (int i = 0; i != size; i++) {
+			if (instructions[i].length != 0) {
+				offsets[indexes[i]] = pc;
+				System.arraycopy(instructions[i], 0, result, pc, instructions[i].length);
+				pc += instructions[i].length;
+			}
+		}
+		offsets[count] = length;
+		for (int i = 0; i != size; i++) {
+			int slot = instructions[i].length == 0 ? -1 : Bytecode.targetSlot(instructions[i][0]);
+			if (slot != -1) {
+				result[offsets[indexes[i]] + slot] = offsets[indexes[nextKept(instructions, instructions[i][slot])]];
+			}
+		}
+		return Bytecode.wrap(result);
+	}
+
+	// = the first instruction from index on that is kept, or the number of
+	// instructions if there is none
+
+	private static int nextKept(int[][] instructions, int index) {
+		while (index != instructions.length && instructions[index].length == 0) {
+			index++;
+		}
+		return index;
+	}
+
+	// = instruction i as it is, with its target as an instruction index
+
+	private int[] original(int i) {
+		int pc = code.offsetOf(i);
+		int[] instruction = Arrays.copyOfRange(slots, pc, pc + Bytecode.length(slots[pc]));
+		int slot = Bytecode.targetSlot(slots[pc]);
+		if (slot != -1) {
+			instruction[slot] = code.targetOf(i);
+		}
+		return instruction;
+	}
+
+	/*
+	 * The registers known to hold a constant at some point of the program.
+	 */
+	private class Constants {
+
+		final boolean[] known;
+		final int[] values;
+
+		Constants(int registers) {
+			known = new boolean[registers];
+			values = new int[registers];
+		}
+
+		private Constants(Constants other) {
+			known = other.known.clone();
+			values = other.values.clone();
+		}
+
+		Constants copy() {
+			return new Constants(this);
+		}
+
+		// Keep only the constants other agrees with.
+		// return "a constant was lost"
+
+		boolean meet(Constants other) {
+			boolean changed = false;
+			for (int r = 0; r != known.length; r++) {
+				if (known[r] && (!other.known[r] || other.values[r] != values[r])) {
+					known[r] = false;
+					changed = true;
+				}
+			}
+			return changed;
+		}
+
+		// Update the constants to those known after instruction i.
+
+		void apply(int i) {
+			int pc = code.offsetOf(i);
+			int op = slots[pc];
+			int result = slots[pc + 1];
+			switch (op) {
+			case Bytecode.LIN:
+				set(result, slots[pc + 2]);
+				break;
+			case Bytecode.ADD:
+			case Bytecode.SUB:
+			case Bytecode.MUL:
+			case Bytecode.DIV:
+				int a = slots[pc + 2];
+				int b = slots[pc + 3];
+				if (known[a] && known[b] && !(op == Bytecode.DIV && values[b] == 0)) {
+					set(result, evaluate(op, values[a], values[b]));
+				} else {
+					known[result] = false;
+				}
+				break;
+			case Bytecode.ADDI:
+			case Bytecode.ADDI_BNZ:
+				if (known[slots[pc + 2]]) {
+					set(result, values[slots[pc + 2]] + slots[pc + 3]);
+				} else {
+					known[result] = false;
+				}
+				break;
+			}
+		}
+
+		// = the replacement for instruction i given the constants known before
+		// it, or null to keep it
+
+		int[] fold(int i) {
+			int pc = code.offsetOf(i);
+			int op = slots[pc];
+			switch (op) {
+			case Bytecode.LIN:
+				return isConstant(slots[pc + 1], slots[pc + 2]) ? REMOVED : null;
+			case Bytecode.BNZ:
+				return isConstant(slots[pc + 1], 1) ? REMOVED : null;
+			case Bytecode.ADDI:
+				return known[slots[pc + 2]] ? load(slots[pc + 1], values[slots[pc + 2]] + slots[pc + 3]) : null;
+			case Bytecode.ADD:
+			case Bytecode.SUB:
+			case Bytecode.MUL:
+			case Bytecode.DIV:
+				break;
+			default:
+				return null;
+			}
+			int result = slots[pc + 1];
+			int a = slots[pc + 2];
+			int b = slots[pc + 3];
+			if (known[a] && known[b]) {
+				// division by zero has to fail as it would have
+				return op == Bytecode.DIV && values[b] == 0 ? null : load(result, evaluate(op, values[a], values[b]));
+			}
+			switch (op) {
+			case Bytecode.ADD:
+				return known[a] ? addi(result, b, values[a]) : known[b] ? addi(result, a, values[b]) : null;
+			case Bytecode.SUB:
+				return known[b] ? addi(result, a, -values[b]) : null;
+			case Bytecode.MUL:
+				if (isConstant(a, 0) || isConstant(b, 0)) {
+					return load(result, 0);
+				}
+				return isConstant(a, 1) ? addi(result, b, 0) : isConstant(b, 1) ? addi(result, a, 0) : null;
+			default:
+				return isConstant(b, 1) ? addi(result, a, 0) : null;
+			}
+		}
+
+		// = a lin of value to register, or nothing if it holds value already
+
+		private int[] load(int register, int value) {
+			return isConstant(register, value) ? REMOVED : new int[] { Bytecode.LIN, register, value };
+		}
+
+		private boolean isConstant(int register, int value) {
+			return known[register] && values[register] == value;
+		}
+
+		private void set(int register, int value) {
+			known[register] = true;
+			values[register] = value;
+		}
+	}
+
+	private static int[] addi(int result, int register, int value) {
+		return new int[] { Bytecode.ADDI, result, register, value };
+	}
+
+	// = the result of arithmetic opcode op on a and b
+	// Precondition: op is not DIV with b == 0
+
+	private static int evaluate(int op, int a, int b) {
+		switch (op) {
+		case Bytecode.ADD:
+			return a + b;
+		case Bytecode.SUB:
+			return a - b;
+		case Bytecode.MUL:
+			return a * b;
+		default:
+			return a / b;
+		}
+	}
+
+}
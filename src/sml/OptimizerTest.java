@@ -0,0 +1,140 @@
+package sml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OptimizerTest {
+
+	private static final int REGISTERS = 32;
+
+	@Test
+	public void fuseFactorialLoop() {
+		List<Instruction> prog = new ArrayList<>();
+		Labels labels = new Labels();
+		assertTrue(new Translator("code.sml").readAndTranslate(labels, prog));
+		Bytecode code = Optimizer.optimize(Bytecode.compile(prog, REGISTERS));
+		// sub 20 20 22 with r22 = 1 and the bnz after it become one instruction
+		assertEquals(6, code.size());
+		assertEquals(Bytecode.ADDI_BNZ, code.opcodeOf(4));
+		assertEquals(3, code.targetOf(4));
+		int[] r = new int[REGISTERS];
+		CollectingOutputSink output = new CollectingOutputSink();
+		code.execute(r, output);
+		assertEquals(720, r[21]);
+		assertEquals(1, r[20]);
+		assertEquals(1, r[22]);
+		assertEquals("720" + System.lineSeparator(), output.toString());
+	}
+
+	@Test
+	public void foldConstantArithmetic() {
+		Bytecode code = optimize(new LinInstruction("f0", 1, 2), new LinInstruction("f1", 2, 3),
+				new AddInstruction("f2", 3, 1, 2), new MulInstruction("f3", 4, 3, 2), new OutInstruction("f4", 4));
+		assertEquals(5, code.size());
+		assertEquals(Bytecode.LIN, code.opcodeOf(2));
+		assertEquals(Bytecode.LIN, code.opcodeOf(3));
+		assertEquals(15, code.getCode()[code.offsetOf(3) + 2]);
+	}
+
+	@Test
+	public void removeOverwrittenStore() {
+		Bytecode code = optimize(new AddInstruction("f0", 1, 2, 3), new LinInstruction("f1", 1, 6),
+				new OutInstruction("f2", 1));
+		assertEquals(2, code.size());
+		assertEquals(Bytecode.LIN, code.opcodeOf(0));
+	}
+
+	@Test
+	public void keepStoreBeforeFailure() {
+		// the division can fail, when r1 must still be 5
+		Bytecode code = optimize(new LinInstruction("f0", 1, 5), new DivInstruction("f1", 2, 3, 4),
+				new LinInstruction("f2", 1, 6));
+		assertEquals(3, code.size());
+		int[] r = new int[REGISTERS];
+		try {
+			code.execute(r, new NullOutputSink());
+		} catch (ArithmeticException e) {
+			assertEquals(5, r[1]);
+			return;
+		}
+		throw new AssertionError("Expected division by zero");
+	}
+
+	@Test
+	public void removeBranchThatNeverJumps() {
+		Bytecode code = optimize(new LinInstruction("f0", 1, 1), new BnzInstruction("f1", 1, "f3"),
+				new LinInstruction("f2", 2, 7), new OutInstruction("f3", 2));
+		assertEquals(3, code.size());
+		for (int i = 0; i != code.size(); i++) {
+			assertTrue(!code.isBranch(i));
+		}
+	}
+
+	@Test
+	public void optimizeRandomProgramsWithoutChangingThem() {
+		Random random = new Random(17);
+		for (int n = 0; n != 500; n++) {
+			Bytecode code = Bytecode.compile(RegisterAllocationTest.randomProgram(random), REGISTERS);
+			Bytecode optimized = Optimizer.optimize(code);
+			assertNotNull(optimized);
+			assertTrue(optimized.size() <= code.size());
+			CompiledProgram compiled = JvmCompiler.compile(optimized);
+			assertNotNull(compiled);
+			int[] initial = new int[REGISTERS];
+			for (int r = 0; r != REGISTERS; r++) {
+				initial[r] = random.nextInt(7) - 2;
+			}
+
+			int[] expected = initial.clone();
+			CollectingOutputSink expectedOutput = new CollectingOutputSink();
+			boolean expectedFailure = run(code, null, expected, expectedOutput);
+			for (CompiledProgram engine : new CompiledProgram[] { null, compiled }) {
+				int[] actual = initial.clone();
+				CollectingOutputSink actualOutput = new CollectingOutputSink();
+				boolean actualFailure = run(optimized, engine, actual, actualOutput);
+				String program = code + "optimized to\n" + optimized;
+				assertEquals(program, expectedFailure, actualFailure);
+				assertArrayEquals(program, expected, actual);
+				assertEquals(program, expectedOutput.toString(), actualOutput.toString());
+			}
+		}
+	}
+
+	// Run code, or compiled if it is not null, on r, returning whether it
+	// throws an ArithmeticException. Its message is not compared, as once the
+	// JIT has compiled a division it may throw without one.
+
+	private static boolean run(Bytecode code, CompiledProgram compiled, int[] r, OutputSink output) {
+		try {
+			if (compiled != null) {
+				compiled.run(r, output);
+			} else {
+				code.execute(r, output);
+			}
+			return false;
+		} catch (ArithmeticException e) {
+			return true;
+		}
+	}
+
+	private static Bytecode optimize(Instruction... instructions) {
+		List<Instruction> prog = new ArrayList<>();
+		Labels labels = new Labels();
+		for (Instruction instruction : instructions) {
+			prog.add(instruction);
+			labels.addLabel(instruction.label);
+		}
+		Bytecode code = new Program("test", prog, labels).getOptimizedBytecode(REGISTERS);
+		assertNotNull(code);
+		return code;
+	}
+
+}
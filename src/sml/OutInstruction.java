@@ -2,24 +2,39 @@ package sml;
 
 /**
  * An SML instruction which when given one parameter s1 will print the contents
- * of register s1 on the Java console (using <code>println</code>).
+ * of register s1 on the machine's output (one value per line).
  */
 public class OutInstruction extends Instruction {
 
-	private int op1;
+	private final int op1;
 
 	public OutInstruction(String l, String op) {
-		super(l, op);
+		this(l, op, 0);
 	}
 
 	public OutInstruction(String label, int op1) {
-		this(label, "out");
+		this(label, "out", op1);
+	}
+
+	private OutInstruction(String label, String op, int op1) {
+		super(label, op);
 		this.op1 = op1;
 	}
 	
 	@Override
 	public void execute(Machine m) {
-		System.out.println(getMachineRegister(m, op1));
+		m.getOutput().write(m.getRegisters().getRegisters()[op1]);
+	}
+
+	@Override
+	public int[] getRegisterOperands() {
+		return new int[] { op1 };
+	}
+
+	@Override
+	public boolean encode(Bytecode.Builder code) {
+		code.emit(Bytecode.OUT).emit(op1);
+		return true;
 	}
 
 	@Override
@@ -27,4 +42,23 @@ public class OutInstruction extends Instruction {
 		return super.toString() + " register " + op1;
 	}
 
+	/*
+	 * Creates out instructions from the operands s1.
+	 */
+	public static class Factory implements InstructionFactory {
+
+		@Override
+		public String getOpcode() {
+			return "out";
+		}
+
+		@Override
+		public Instruction create(String label, Operands operands) {
+			if (!operands.areIntegers(1)) {
+				return null;
+			}
+			return new OutInstruction(label, operands.getInteger(0));
+		}
+	}
+
 }
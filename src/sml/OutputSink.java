@@ -0,0 +1,26 @@
+package sml;
+
+/*
+ * Where a Machine writes the values printed by out instructions. Each value
+ * is written on a line of its own. Sinks may hold values back until they are
+ * flushed, which the Machine does when a program ends.
+ */
+public interface OutputSink {
+
+	// Write value followed by a line separator.
+
+	void write(int value);
+
+	// Write value followed by a line separator.
+
+	void write(long value);
+
+	// Pass on any values held back.
+
+	void flush();
+
+	// = the number of values written so far
+
+	long getPosition();
+
+}
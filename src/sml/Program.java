@@ -0,0 +1,197 @@
+package sml;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A translated SML program: its instructions, with every branch resolved,
+ * and its labels. A Program never changes once created, so any number of
+ * Machines can execute it at the same time without copying it.
+ */
+public final class Program {
+
+	private final String name;
+	private final List<Instruction> instructions;
+	private final Labels labels;
+	private final int registerBound;
+
+	// The program's Bytecode, plain and optimized, for the register count it
+	// was last lowered for
+	private volatile Lowered lowered;
+
+	// The program's basic blocks, once they are needed
+	private volatile ControlFlowGraph graph;
+
+	// The program's Snapshot fingerprint, or 0 until it is needed
+	private volatile long fingerprint;
+
+	// A program named name holding copies of instructions and labels. Any
+	// branches that are not yet resolved are resolved against labels.
+	// Throws IllegalArgumentException if a branch label is not defined.
+
+	public Program(String name, List<Instruction> instructions, Labels labels) {
+		this(name, instructions.toArray(new Instruction[instructions.size()]), labels.copy());
+	}
+
+	// A program that takes ownership of instructions and labels
+
+	Program(String name, Instruction[] instructions, Labels labels) {
+		for (int i = 0; i != instructions.length; i++) {
+			if (instructions[i] instanceof BnzInstruction) {
+				BnzInstruction bnz = (BnzInstruction) instructions[i];
+				if (bnz.getTarget() == -1) {
+					instructions[i] = bnz.resolve(labels);
+					if (instructions[i] == null) {
+						throw new IllegalArgumentException("Unresolved label '" + bnz.getBranchLabel() + "' at line " + (i + 1));
+					}
+				}
+			}
+		}
+		this.name = name;
+		this.instructions = Collections.unmodifiableList(Arrays.asList(instructions));
+		this.labels = labels.freeze();
+		this.registerBound = registerBound(instructions);
+	}
+
+	// = a description of where the program came from
+
+	public String getName() {
+		return name;
+	}
+
+	// = the instructions, as a list that cannot be modified
+
+	public List<Instruction> getInstructions() {
+		return instructions;
+	}
+
+	// = the labels, which are read only
+
+	public Labels getLabels() {
+		return labels;
+	}
+
+	// = the number of registers a machine needs to run the program: one more
+	// than the largest register used, or Integer.MAX_VALUE if a negative
+	// register is used
+
+	public int getRegisterBound() {
+		return registerBound;
+	}
+
+	// = the number of instructions in the program
+
+	public int size() {
+		return instructions.size();
+	}
+
+	// = the fingerprint of the program's instructions, as given by
+	// Snapshot.fingerprint
+
+	public long getFingerprint() {
+		long fingerprint = this.fingerprint;
+		if (fingerprint == 0) {
+			fingerprint = Snapshot.fingerprint(instructions);
+			this.fingerprint = fingerprint;
+		}
+		return fingerprint;
+	}
+
+	// = the basic blocks of the program's instructions
+
+	public ControlFlowGraph getControlFlowGraph() {
+		ControlFlowGraph graph = this.graph;
+		if (graph == null) {
+			graph = new ControlFlowGraph(instructions);
+			this.graph = graph;
+		}
+		return graph;
+	}
+
+	// = the program lowered to Bytecode for machines with registerCount
+	// registers, or null if it cannot be lowered; the result is kept so that
+	// runs after the first do not lower the program again
+
+	public Bytecode getBytecode(int registerCount) {
+		return lower(registerCount).bytecode;
+	}
+
+	// = the program lowered as by getBytecode and then optimized by
+	// Optimizer, or null if it cannot be lowered; its instructions do not
+	// correspond one to one with the program's
+
+	public Bytecode getOptimizedBytecode(int registerCount) {
+		Lowered lowered = lower(registerCount);
+		if (lowered.optimized == null && lowered.bytecode != null) {
+			lowered.optimized = Optimizer.optimize(lowered.bytecode);
+		}
+		return lowered.optimized;
+	}
+
+	// = the program lowered as by getBytecode with the sequences profile
+	// found hot fused by Superinstructions, or null if it cannot be lowered.
+	// The result is kept until a different profile is given, so it reflects
+	// the profile as it was when first asked for.
+
+	public Bytecode getFusedBytecode(int registerCount, ExecutionProfile profile) {
+		Lowered lowered = lower(registerCount);
+		synchronized (lowered) {
+			if (lowered.fusedBy != profile && lowered.bytecode != null) {
+				lowered.fused = Superinstructions.fuse(lowered.bytecode, profile);
+				lowered.fusedBy = profile;
+			}
+			return lowered.fused;
+		}
+	}
+
+	private Lowered lower(int registerCount) {
+		Lowered lowered = this.lowered;
+		if (lowered == null || lowered.registerCount != registerCount) {
+			lowered = new Lowered(registerCount, Bytecode.compile(instructions, registerCount));
+			this.lowered = lowered;
+		}
+		return lowered;
+	}
+
+	private static int registerBound(Instruction[] instructions) {
+		int bound = 0;
+		for (Instruction ins : instructions) {
+			for (int register : ins.getRegisterOperands()) {
+				if (register < 0) {
+					return Integer.MAX_VALUE;
+				}
+				bound = Math.max(bound, register + 1);
+			}
+		}
+		return bound;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (Instruction ins : instructions) {
+			s.append(ins).append('\n');
+		}
+		return s.toString();
+	}
+
+	/*
+	 * The Bytecode for one register count (null if the program has none),
+	 * and its optimized and fused forms once they are needed.
+	 */
+	private static class Lowered {
+
+		private final int registerCount;
+		private final Bytecode bytecode;
+		private volatile Bytecode optimized;
+		private Bytecode fused;
+		private ExecutionProfile fusedBy;
+
+		Lowered(int registerCount, Bytecode bytecode) {
+			this.registerCount = registerCount;
+			this.bytecode = bytecode;
+		}
+	}
+
+}
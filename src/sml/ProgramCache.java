@@ -0,0 +1,276 @@
+package sml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A directory of translated programs, keyed by the SHA-256 hash of their
+ * source, so that translating a source that has been translated before only
+ * reads the stored Bytecode and labels instead of parsing it. Entries are
+ * checked when they are loaded and translated again if they are damaged.
+ * When the directory grows past its size limit the entries used least
+ * recently are deleted.
+ *
+ * Programs containing instructions that have no Bytecode form are translated
+ * every time.
+ *
+ * Entry format (big-endian, as written by DataOutputStream):
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * byte[32] SHA-256 hash of the source
+ * int     n, the number of instructions
+ * int     m, the number of code slots
+ * int[m]  the Bytecode
+ * UTF[n]  the label of each instruction
+ * long    CRC-32 of everything above
+ * </pre>
+ */
+public class ProgramCache {
+
+	private static final int MAGIC = 0x534d4c43; // "SMLC"
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".smlc";
+	private static final int HEADER_SIZE = 4 + 4 + 32 + 4 + 4; // up to the Bytecode
+
+	private final Path directory;
+	private final long maxBytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// A cache keeping at most about maxBytes of entries in directory, which
+	// is created if necessary
+
+	public ProgramCache(Path directory, long maxBytes) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.maxBytes = maxBytes;
+	}
+
+	// = the program in the file at source, from the cache if it holds an
+	// entry for the same content, or null if it cannot be translated (errors
+	// are reported as by Translator)
+
+	public Program translate(Path source) {
+		byte[] hash;
+		try {
+			hash = hash(source);
+		} catch (IOException ioE) {
+			System.err.format("Error reading program: IO error %s.\n", ioE.getMessage());
+			return null;
+		}
+
+		Path entry = directory.resolve(toHex(hash) + SUFFIX);
+		Program program = load(entry, hash, source.toString());
+		if (program != null) {
+			hits.incrementAndGet();
+			return program;
+		}
+
+		misses.incrementAndGet();
+		program = new Translator(source).translate();
+		if (program != null) {
+			store(entry, hash, program);
+		}
+		return program;
+	}
+
+	// = the number of translations answered from the cache
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	// = the number of translations that had to parse their source
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	// = the program stored in entry, or null if there is none or it is not a
+	// valid entry for a source with hash hash
+
+	private Program load(Path entry, byte[] hash, String name) {
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(entry)), crc))) {
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			byte[] storedHash = new byte[hash.length];
+			in.readFully(storedHash);
+			if (!Arrays.equals(hash, storedHash)) {
+				return null;
+			}
+
+			int count = in.readInt();
+			int slots = in.readInt();
+			// checked before the CRC is, so that a damaged entry cannot make
+			// it allocate more than the entry holds
+			if (slots < 0 || HEADER_SIZE + 4L * slots + 8 > Files.size(entry)) {
+				return null;
+			}
+			int[] code = new int[slots];
+			for (int i = 0; i != code.length; i++) {
+				code[i] = in.readInt();
+			}
+			Bytecode bytecode = Bytecode.wrap(code);
+			if (bytecode == null || bytecode.size() != count) {
+				return null;
+			}
+
+			Labels labels = new Labels();
+			for (int i = 0; i != count; i++) {
+				String label = in.readUTF();
+				if (labels.indexOf(label) != -1) {
+					return null;
+				}
+				labels.addLabel(label);
+			}
+			long checksum = crc.getValue();
+			if (in.readLong() != checksum) {
+				return null;
+			}
+
+			Instruction[] instructions = new Instruction[count];
+			for (int i = 0; i != count; i++) {
+				instructions[i] = bytecode.decode(i, labels);
+			}
+			touch(entry);
+			return new Program(name, instructions, labels);
+
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | RuntimeException e) {
+			System.err.format("Ignoring damaged cache entry %s: %s.%n", entry, e);
+			return null;
+		}
+	}
+
+	// Mark entry as the most recently used, reporting rather than throwing if
+	// it cannot be, as when the directory is read-only, since the entry is
+	// still valid
+
+	private static void touch(Path entry) {
+		try {
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			System.err.format("Error marking cache entry %s as used: %s.%n", entry, e);
+		}
+	}
+
+	// Store program as the entry for a source with hash hash, then evict the
+	// least recently used entries if the cache is too large.
+
+	private void store(Path entry, byte[] hash, Program program) {
+		Bytecode bytecode = Bytecode.compile(program.getInstructions(), Integer.MAX_VALUE);
+		if (bytecode == null) {
+			return;
+		}
+
+		try {
+			Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+			try {
+				CRC32 crc = new CRC32();
+				try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), crc))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.write(hash);
+					out.writeInt(bytecode.size());
+					int[] code = bytecode.getCode();
+					out.writeInt(code.length);
+					for (int slot : code) {
+						out.writeInt(slot);
+					}
+					Labels labels = program.getLabels();
+					for (int i = 0; i != labels.size(); i++) {
+						out.writeUTF(labels.get(i));
+					}
+					out.flush();
+					out.writeLong(crc.getValue());
+				}
+				Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporary);
+			}
+			evict();
+		} catch (IOException | RuntimeException e) {
+			System.err.format("Error storing cache entry %s: %s.%n", entry, e);
+		}
+	}
+
+	// Delete the least recently used entries until the cache is within its
+	// size limit.
+
+	private void evict() throws IOException {
+		List<Path> entries = new ArrayList<>();
+		long size = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path entry : stream) {
+				entries.add(entry);
+				size += Files.size(entry);
+			}
+		}
+		if (size <= maxBytes) {
+			return;
+		}
+		entries.sort(Comparator.comparing(ProgramCache::lastUsed));
+		for (Path entry : entries) {
+			if (size <= maxBytes) {
+				break;
+			}
+			size -= Files.size(entry);
+			Files.deleteIfExists(entry);
+		}
+	}
+
+	private static FileTime lastUsed(Path entry) {
+		try {
+			return Files.getLastModifiedTime(entry);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	private static byte[] hash(Path source) throws IOException {
+		try (FileChannel file = FileChannel.open(source, StandardOpenOption.READ)) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			long size = file.size();
+			for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+				digest.update(file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position)));
+			}
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder s = new StringBuilder();
+		for (byte b : bytes) {
+			s.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return s.toString();
+	}
+
+}
@@ -0,0 +1,105 @@
+package sml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProgramCacheTest {
+
+	private Path directory;
+
+	@Before
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("sml-cache");
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		for (Path path : list("*")) {
+			Files.delete(path);
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	public void reuseTranslatedProgram() throws IOException {
+		ProgramCache cache = new ProgramCache(directory, 1 << 20);
+		Path source = Paths.get("src", "code.sml");
+		assertNotNull(cache.translate(source));
+		Program program = cache.translate(source);
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(new Translator(source).translate().toString(), program.toString());
+		assertFactorial(program);
+	}
+
+	@Test
+	public void retranslateDamagedEntry() throws IOException {
+		ProgramCache cache = new ProgramCache(directory, 1 << 20);
+		Path source = Paths.get("src", "code.sml");
+		cache.translate(source);
+		Path entry = list("*.smlc").get(0);
+		byte[] bytes = Files.readAllBytes(entry);
+		bytes[bytes.length / 2] ^= 1;
+		Files.write(entry, bytes);
+		assertFactorial(cache.translate(source));
+		assertEquals(2, cache.getMisses());
+		assertFactorial(cache.translate(source));
+		assertEquals(1, cache.getHits());
+
+		// a code size far beyond what the entry holds
+		bytes = Files.readAllBytes(entry);
+		ByteBuffer.wrap(bytes).putInt(4 + 4 + 32 + 4, Integer.MAX_VALUE - 8);
+		Files.write(entry, bytes);
+		assertFactorial(cache.translate(source));
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void evictLeastRecentlyUsed() throws IOException {
+		ProgramCache cache = new ProgramCache(directory, 400);
+		for (int i = 0; i != 10; i++) {
+			Path source = directory.resolve("p" + i + ".sml");
+			Files.write(source, ("f0 lin 1 " + i + "\nf1 out 1\n").getBytes(StandardCharsets.UTF_8));
+			assertNotNull(cache.translate(source));
+		}
+		long size = 0;
+		for (Path entry : list("*.smlc")) {
+			size += Files.size(entry);
+		}
+		assertTrue(size <= 400);
+		assertTrue(list("*.smlc").size() > 0);
+	}
+
+	private void assertFactorial(Program program) {
+		Machine m = new Machine();
+		m.setProgram(program);
+		m.execute();
+		assertEquals(720, m.getRegisters().getRegister(21));
+	}
+
+	private List<Path> list(String glob) throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+			for (Path path : stream) {
+				paths.add(path);
+			}
+		}
+		return paths;
+	}
+
+}
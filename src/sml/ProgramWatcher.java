@@ -0,0 +1,146 @@
+package sml;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the translation of an SML source file up to date while it is being
+ * run. A background thread watches the file's directory and, when the file
+ * is changed or replaced, translates it again with Translator.retranslate,
+ * which only parses the lines that changed, and swaps the new Program in
+ * atomically.
+ *
+ * Executions that get the program after a swap run the new version. Runs
+ * already under way keep the Program they started with, which never
+ * changes, so they finish on it. If the file no longer translates, the
+ * errors are reported and the last program that did stays in use.
+ */
+public class ProgramWatcher implements AutoCloseable {
+
+	// How long the file must go without changing before it is translated, so
+	// that a file being written is translated once, when it is complete
+
+	private static final long SETTLE_MILLIS = 50;
+
+	private final Path path;
+	private final Translator translator;
+	private final AtomicReference<Program> program = new AtomicReference<>();
+	private final WatchService watcher;
+	private final Thread thread;
+	private volatile long version;
+
+	// A watcher of the file at path, which is translated straight away.
+	// Throws IOException if its directory cannot be watched.
+
+	public ProgramWatcher(Path path) throws IOException {
+		this(path, new Translator(path.toAbsolutePath()));
+	}
+
+	// A watcher of the file at path that translates it with translator, which
+	// is set to read the file rather than map it, since the file can be
+	// rewritten while it is being translated
+
+	ProgramWatcher(Path path, Translator translator) throws IOException {
+		this.path = path.toAbsolutePath();
+		this.translator = translator;
+		this.translator.setMapped(false);
+		this.watcher = this.path.getFileSystem().newWatchService();
+		try {
+			this.path.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+		} catch (IOException | RuntimeException e) {
+			watcher.close();
+			throw e;
+		}
+		reload();
+		this.thread = new Thread(this::watch, "sml-watcher " + this.path.getFileName());
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	// = the latest version of the program, or null if the file has not
+	// translated yet
+
+	public Program getProgram() {
+		return program.get();
+	}
+
+	// = the number of times a new version of the program has been swapped in
+
+	public long getVersion() {
+		return version;
+	}
+
+	// Translate the file again now, rather than waiting for it to change.
+	// return "the file translated", in which case its program is now the
+	// latest version
+
+	public synchronized boolean reload() {
+		Program translated = translator.retranslate();
+		if (translated == null) {
+			System.err.format("Keeping the last version of %s, which translated.%n", path);
+			return false;
+		}
+		program.set(translated);
+		version++;
+		return true;
+	}
+
+	// Stop watching the file. The latest program stays available.
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+		thread.interrupt();
+	}
+
+	// Wait for the file to change and reload it, until the watcher is
+	// closed. A reload that fails with an exception is reported and the last
+	// program that translated stays in use.
+
+	private void watch() {
+		try {
+			while (true) {
+				boolean changed = changed(watcher.take());
+				// wait until the changes stop
+				for (WatchKey key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS); key != null; key = watcher.poll(
+						SETTLE_MILLIS, TimeUnit.MILLISECONDS)) {
+					changed |= changed(key);
+				}
+				if (changed) {
+					try {
+						reload();
+					} catch (RuntimeException | Error e) {
+						System.err.format("Keeping the last version of %s, which failed to reload: %s%n", path, e);
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException | InterruptedException e) {
+			// closed
+		}
+	}
+
+	// = whether the events of key include one for the file; key is then
+	// reset to receive more events
+
+	private boolean changed(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW || path.getFileName().equals(event.context())) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+}
@@ -0,0 +1,147 @@
+package sml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProgramWatcherTest {
+
+	private static final String FACTORIAL = "f0 lin 20 6\nf1 lin 21 1\nf2 lin 22 1\nf3 mul 21 21 20\nf4 sub 20 20 22\nf5 bnz 20 f3\nf6 out 21\n";
+
+	private Path directory;
+	private Path file;
+
+	@Before
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("sml-watch");
+		file = directory.resolve("factorial.sml");
+		write(FACTORIAL);
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path path : files) {
+				Files.delete(path);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	public void swapInChangedProgram() throws Exception {
+		try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+			Program first = watcher.getProgram();
+			assertNotNull(first);
+			assertEquals(720, factorial(first));
+
+			write(FACTORIAL.replace("lin 20 6", "lin 20 5"));
+			awaitVersion(watcher, 2);
+			assertEquals(120, factorial(watcher.getProgram()));
+			// runs that started on the first version can still finish on it
+			assertEquals(720, factorial(first));
+
+			// editors often save by replacing the file
+			Path saved = directory.resolve("factorial.sml.tmp");
+			Files.write(saved, FACTORIAL.replace("lin 20 6", "lin 20 4").getBytes(StandardCharsets.UTF_8));
+			Files.move(saved, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			awaitVersion(watcher, 3);
+			assertEquals(24, factorial(watcher.getProgram()));
+		}
+	}
+
+	@Test
+	public void keepLastProgramThatTranslated() throws Exception {
+		try (ProgramWatcher watcher = new ProgramWatcher(file)) {
+			Program first = watcher.getProgram();
+			PrintStream err = System.err;
+			ByteArrayOutputStream errors = new ByteArrayOutputStream();
+			System.setErr(new PrintStream(errors, true));
+			try {
+				write(FACTORIAL.replace("bnz 20 f3", "bnz 20 f9"));
+				assertFalse(watcher.reload());
+			} finally {
+				System.setErr(err);
+			}
+			assertTrue(errors.toString().contains("Unresolved label 'f9' at line 6"));
+			assertSame(first, watcher.getProgram());
+
+			write(FACTORIAL);
+			assertTrue(watcher.reload());
+			assertEquals(720, factorial(watcher.getProgram()));
+		}
+	}
+
+	@Test
+	public void keepWatchingAfterFailedReload() throws Exception {
+		CountDownLatch failed = new CountDownLatch(1);
+		Translator translator = new Translator(file) {
+			@Override
+			public Program retranslate() {
+				Program program = super.retranslate();
+				if (program != null && factorial(program) == 120) {
+					failed.countDown();
+					throw new IllegalStateException("Failed to reload");
+				}
+				return program;
+			}
+		};
+		PrintStream err = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(errors, true));
+		try (ProgramWatcher watcher = new ProgramWatcher(file, translator)) {
+			Program first = watcher.getProgram();
+			write(FACTORIAL.replace("lin 20 6", "lin 20 5"));
+			assertTrue(failed.await(10, TimeUnit.SECONDS));
+			assertSame(first, watcher.getProgram());
+
+			write(FACTORIAL.replace("lin 20 6", "lin 20 4"));
+			awaitVersion(watcher, 2);
+			assertEquals(24, factorial(watcher.getProgram()));
+		} finally {
+			System.setErr(err);
+		}
+		assertTrue(errors.toString().contains("failed to reload: java.lang.IllegalStateException: Failed to reload"));
+	}
+
+	private void write(String source) throws IOException {
+		Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Wait up to 10 seconds for watcher to reach version (a change can be
+	// seen more than once, so it may go past it).
+
+	private static void awaitVersion(ProgramWatcher watcher, long version) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (watcher.getVersion() < version && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(watcher.getVersion() >= version);
+	}
+
+	private static int factorial(Program program) {
+		Machine m = new Machine();
+		m.setProgram(program);
+		m.setOutput(new NullOutputSink());
+		m.execute();
+		return m.getRegisters().getRegister(21);
+	}
+
+}
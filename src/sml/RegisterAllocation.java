@@ -0,0 +1,443 @@
+package sml;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Maps the registers of a program onto a small number of slots, such as the
+ * local variables of a compiled method, using its SsaForm.
+ *
+ * The values of a register that meet at phis form one web, and every web
+ * that is read by an instruction is given a slot. Webs that are never live
+ * at the same time share a slot, even if they belong to different
+ * registers, so programs touching many registers need only as many slots
+ * as they have values live at once.
+ *
+ * The caller must still see the right value in each register it can
+ * observe: at the end, and when an instruction fails. A web that is never
+ * read, or whose writes are all outside loops, is written through to the
+ * register file at each write; any other web is saved from its slot where
+ * it is observed, and so stays live until then.
+ */
+public class RegisterAllocation {
+
+	private final SsaForm ssa;
+	private final int[] webs; // by value
+	private final int[] slots; // by web, -1 if it has none
+	private final boolean[] writeThrough; // by web
+	private int slotCount;
+	private final int[] loads;
+	private final int[][] saves; // by instruction, then the exit
+
+	public RegisterAllocation(SsaForm ssa) {
+		this.ssa = ssa;
+		Bytecode code = ssa.getControlFlowGraph().getBytecode();
+		int size = code.size();
+
+		webs = findWebs();
+		int webCount = 0;
+		for (int web : webs) {
+			webCount = Math.max(webCount, web + 1);
+		}
+
+		// Decide which webs get slots and which are written through.
+		boolean[] read = new boolean[webCount];
+		boolean[] written = new boolean[webCount];
+		boolean[] writtenInLoop = new boolean[webCount];
+		boolean[] loops = loopBlocks(ssa.getControlFlowGraph());
+		for (int i = 0; i != size; i++) {
+			for (int value : ssa.uses(i)) {
+				read[webs[value]] = true;
+			}
+			if (ssa.definition(i) != -1) {
+				int web = webs[ssa.definition(i)];
+				written[web] = true;
+				writtenInLoop[web] |= loops[ssa.getControlFlowGraph().blockOf(i)];
+			}
+		}
+		writeThrough = new boolean[webCount];
+		boolean[] saved = new boolean[webCount];
+		for (int web = 0; web != webCount; web++) {
+			writeThrough[web] = !read[web] || !writtenInLoop[web];
+			saved[web] = written[web] && !writeThrough[web];
+		}
+
+		BitSet[] liveOut = liveness(read, saved);
+		slots = color(interference(read, saved, liveOut), read);
+
+		int entry = ssa.entryNode();
+		int[] loads = new int[2 * liveOut[entry].cardinality()];
+		int count = 0;
+		for (int value = 0; value != ssa.valueCount() && ssa.isEntry(value); value++) {
+			if (liveOut[entry].get(webs[value])) {
+				loads[count++] = ssa.registerOf(value);
+				loads[count++] = slots[webs[value]];
+			}
+		}
+		this.loads = Arrays.copyOf(loads, count);
+
+		saves = new int[size + 1][];
+		for (int i = 0; i <= size; i++) {
+			int[] observed = ssa.observations(i);
+			if (observed != null) {
+				int[] pairs = new int[2 * observed.length];
+				count = 0;
+				for (int value : observed) {
+					if (saved[webs[value]]) {
+						pairs[count++] = ssa.registerOf(value);
+						pairs[count++] = slots[webs[value]];
+					}
+				}
+				saves[i] = Arrays.copyOf(pairs, count);
+			}
+		}
+	}
+
+	// = the allocation for code
+
+	public static RegisterAllocation of(Bytecode code) {
+		return new RegisterAllocation(new SsaForm(new ControlFlowGraph(code)));
+	}
+
+	// = the program in SSA form
+
+	public SsaForm getSsaForm() {
+		return ssa;
+	}
+
+	// = the number of slots used
+
+	public int getSlotCount() {
+		return slotCount;
+	}
+
+	// = the slot read by operand n of instruction index
+
+	public int useSlot(int index, int n) {
+		return slots[webs[ssa.uses(index)[n]]];
+	}
+
+	// = the slot written by instruction index, or -1 if it writes none or
+	// its result is only written to the register file
+
+	public int defSlot(int index) {
+		int value = ssa.definition(index);
+		return value == -1 ? -1 : slots[webs[value]];
+	}
+
+	// = whether instruction index writes its result to the register file
+	// (as well as to its slot, if it has one)
+
+	public boolean writesThrough(int index) {
+		int value = ssa.definition(index);
+		return value != -1 && writeThrough[webs[value]];
+	}
+
+	// = (register, slot) pairs giving the slots to load from the register
+	// file before the program starts; callers must not modify the result
+
+	public int[] getLoads() {
+		return loads;
+	}
+
+	// = (register, slot) pairs giving the slots to save to the register file
+	// if instruction index fails, or at the end if index is the number of
+	// instructions, or null if instruction index cannot fail; callers must
+	// not modify the result
+
+	public int[] getSaves(int index) {
+		return saves[index];
+	}
+
+	// = the web of each value, numbered from 0: the values joined through
+	// phis
+
+	private int[] findWebs() {
+		int[] parents = new int[ssa.valueCount()];
+		for (int value = 0; value != parents.length; value++) {
+			parents[value] = value;
+		}
+		for (int value = 0; value != parents.length; value++) {
+			int[] operands = ssa.phiOperands(value);
+			if (operands != null) {
+				for (int operand : operands) {
+					int a = find(parents, value);
+					int b = find(parents, operand);
+					parents[Math.max(a, b)] = Math.min(a, b);
+				}
+			}
+		}
+		int[] webs = new int[parents.length];
+		int count = 0;
+		for (int value = 0; value != parents.length; value++) {
+			int root = find(parents, value);
+			webs[value] = root == value ? count++ : webs[root];
+		}
+		return webs;
+	}
+
+	private static int find(int[] parents, int value) {
+		while (parents[value] != value) {
+			parents[value] = parents[parents[value]];
+			value = parents[value];
+		}
+		return value;
+	}
+
+	// = the webs with slots live at the end of each node
+
+	private BitSet[] liveness(boolean[] read, boolean[] saved) {
+		int nodes = ssa.nodeCount();
+		BitSet[] generated = new BitSet[nodes];
+		BitSet[] killed = new BitSet[nodes];
+		BitSet[] liveIn = new BitSet[nodes];
+		BitSet[] liveOut = new BitSet[nodes];
+		for (int node = 0; node != nodes; node++) {
+			generated[node] = new BitSet();
+			killed[node] = new BitSet();
+			liveIn[node] = new BitSet();
+			liveOut[node] = new BitSet();
+			walk(node, generated[node], killed[node], read, saved, null);
+		}
+
+		int[] order = ssa.order();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = order.length - 1; k >= 0; k--) {
+				int node = order[k];
+				BitSet out = liveOut[node];
+				for (int successor : ssa.successors(node)) {
+					out.or(liveIn[successor]);
+					for (int phi : ssa.phis(successor)) {
+						if (read[webs[phi]]) {
+							out.set(webs[phi]);
+						}
+					}
+				}
+				BitSet in = (BitSet) out.clone();
+				in.andNot(killed[node]);
+				in.or(generated[node]);
+				if (!in.equals(liveIn[node])) {
+					liveIn[node] = in;
+					changed = true;
+				}
+			}
+		}
+		return liveOut;
+	}
+
+	// = the interference graph of the webs with slots
+
+	private Graph interference(boolean[] read, boolean[] saved, BitSet[] liveOut) {
+		Graph graph = new Graph(read.length);
+		for (int node = 0; node != ssa.nodeCount(); node++) {
+			walk(node, (BitSet) liveOut[node].clone(), null, read, saved, graph);
+		}
+		// the initial values are loaded together
+		BitSet loaded = liveOut[ssa.entryNode()];
+		for (int a = loaded.nextSetBit(0); a >= 0; a = loaded.nextSetBit(a + 1)) {
+			for (int b = loaded.nextSetBit(a + 1); b >= 0; b = loaded.nextSetBit(b + 1)) {
+				graph.addEdge(a, b);
+			}
+		}
+		return graph;
+	}
+
+	// Walk node backwards from its end with the webs in live live there,
+	// recording the webs it reads before writing in live and those it writes
+	// in killed (if not null), and the webs each write interferes with in
+	// graph (if not null).
+
+	private void walk(int node, BitSet live, BitSet killed, boolean[] read, boolean[] saved, Graph graph) {
+		Bytecode code = ssa.getControlFlowGraph().getBytecode();
+		if (node == ssa.exitNode()) {
+			use(live, ssa.observations(code.size()), saved);
+		}
+		if (node < ssa.entryNode()) {
+			ControlFlowGraph cfg = ssa.getControlFlowGraph();
+			for (int i = cfg.end(node) - 1; i >= cfg.first(node); i--) {
+				int value = ssa.definition(i);
+				if (value != -1 && read[webs[value]]) {
+					define(live, killed, webs[value], graph);
+				}
+				for (int use : ssa.uses(i)) {
+					live.set(webs[use]);
+				}
+				use(live, ssa.observations(i), saved);
+			}
+		}
+		int[] phis = ssa.phis(node);
+		for (int phi : phis) {
+			if (read[webs[phi]] && graph != null) {
+				// phis are written together, so also interfere with each other
+				for (int other : phis) {
+					if (read[webs[other]]) {
+						live.set(webs[other]);
+					}
+				}
+			}
+		}
+		for (int phi : phis) {
+			if (read[webs[phi]]) {
+				define(live, killed, webs[phi], graph);
+			}
+		}
+	}
+
+	private void use(BitSet live, int[] observed, boolean[] saved) {
+		if (observed != null) {
+			for (int value : observed) {
+				if (saved[webs[value]]) {
+					live.set(webs[value]);
+				}
+			}
+		}
+	}
+
+	private static void define(BitSet live, BitSet killed, int web, Graph graph) {
+		if (graph != null) {
+			for (int other = live.nextSetBit(0); other >= 0; other = live.nextSetBit(other + 1)) {
+				if (other != web) {
+					graph.addEdge(web, other);
+				}
+			}
+		}
+		live.clear(web);
+		if (killed != null) {
+			killed.set(web);
+		}
+	}
+
+	// = the slot of each web with one, choosing for each web in dominator
+	// order the lowest slot not taken by a web it interferes with
+
+	private int[] color(Graph graph, boolean[] read) {
+		int[] slots = new int[read.length];
+		Arrays.fill(slots, -1);
+		int[] taken = new int[read.length + 1];
+		for (int value = 0; value != ssa.valueCount() && ssa.isEntry(value); value++) {
+			color(webs[value], graph, read, slots, taken);
+		}
+		ControlFlowGraph cfg = ssa.getControlFlowGraph();
+		for (int node : ssa.order()) {
+			for (int phi : ssa.phis(node)) {
+				color(webs[phi], graph, read, slots, taken);
+			}
+			if (node < ssa.entryNode()) {
+				for (int i = cfg.first(node); i != cfg.end(node); i++) {
+					if (ssa.definition(i) != -1) {
+						color(webs[ssa.definition(i)], graph, read, slots, taken);
+					}
+				}
+			}
+		}
+		return slots;
+	}
+
+	private void color(int web, Graph graph, boolean[] read, int[] slots, int[] taken) {
+		if (!read[web] || slots[web] != -1) {
+			return;
+		}
+		// mark the slots of the web's neighbours with the web's number
+		for (int k = 0; k != graph.degrees[web]; k++) {
+			int other = graph.edges[web][k];
+			if (slots[other] != -1) {
+				taken[slots[other]] = web + 1;
+			}
+		}
+		int slot = 0;
+		while (taken[slot] == web + 1) {
+			slot++;
+		}
+		slots[web] = slot;
+		slotCount = Math.max(slotCount, slot + 1);
+	}
+
+	// = whether each block of cfg is on a cycle, found with Tarjan's
+	// strongly connected components algorithm
+
+	private static boolean[] loopBlocks(ControlFlowGraph cfg) {
+		int blocks = cfg.size();
+		boolean[] loops = new boolean[blocks];
+		int[] indexes = new int[blocks];
+		int[] lows = new int[blocks];
+		int[] next = new int[blocks];
+		int[] path = new int[blocks];
+		int[] stack = new int[blocks];
+		boolean[] onStack = new boolean[blocks];
+		Arrays.fill(indexes, -1);
+		int counter = 0;
+		int stackSize = 0;
+		for (int root = 0; root != blocks; root++) {
+			if (indexes[root] != -1) {
+				continue;
+			}
+			int top = 0;
+			path[0] = root;
+			indexes[root] = lows[root] = counter++;
+			stack[stackSize++] = root;
+			onStack[root] = true;
+			while (top >= 0) {
+				int block = path[top];
+				int[] successors = cfg.successors(block);
+				if (next[block] < successors.length) {
+					int successor = successors[next[block]++];
+					if (successor == block) {
+						loops[block] = true;
+					} else if (indexes[successor] == -1) {
+						indexes[successor] = lows[successor] = counter++;
+						stack[stackSize++] = successor;
+						onStack[successor] = true;
+						path[++top] = successor;
+					} else if (onStack[successor]) {
+						lows[block] = Math.min(lows[block], indexes[successor]);
+					}
+					continue;
+				}
+				top--;
+				if (top >= 0) {
+					lows[path[top]] = Math.min(lows[path[top]], lows[block]);
+				}
+				if (lows[block] == indexes[block]) {
+					int end = stackSize;
+					do {
+						onStack[stack[--stackSize]] = false;
+					} while (stack[stackSize] != block);
+					for (int k = stackSize; end - stackSize > 1 && k != end; k++) {
+						loops[stack[k]] = true;
+					}
+				}
+			}
+		}
+		return loops;
+	}
+
+	/*
+	 * An interference graph, as a list of neighbours for each web. A pair of
+	 * webs may be listed more than once.
+	 */
+	private static class Graph {
+
+		private final int[][] edges;
+		private final int[] degrees;
+
+		Graph(int webs) {
+			edges = new int[webs][0];
+			degrees = new int[webs];
+		}
+
+		void addEdge(int a, int b) {
+			add(a, b);
+			add(b, a);
+		}
+
+		private void add(int from, int to) {
+			if (degrees[from] == edges[from].length) {
+				edges[from] = Arrays.copyOf(edges[from], Math.max(4, 2 * degrees[from]));
+			}
+			edges[from][degrees[from]++] = to;
+		}
+	}
+
+}
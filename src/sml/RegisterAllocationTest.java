@@ -0,0 +1,200 @@
+package sml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RegisterAllocationTest {
+
+	private static final int REGISTERS = 32;
+
+	@Test
+	public void findFactorialLoop() {
+		Bytecode code = factorial();
+		ControlFlowGraph cfg = new ControlFlowGraph(code);
+		assertEquals(3, cfg.size());
+		assertEquals(3, cfg.first(1));
+		assertArrayEquals(new int[] { 2, 1 }, cfg.successors(1));
+		assertArrayEquals(new int[] { 0, 1 }, cfg.predecessors(1));
+		assertTrue(cfg.isExit(2));
+	}
+
+	@Test
+	public void findFactorialLoopInInstructions() {
+		Program program = new Translator("code.sml").translate();
+		ControlFlowGraph cfg = program.getControlFlowGraph();
+		assertEquals(new ControlFlowGraph(factorial()).toString(), cfg.toString());
+		assertTrue(cfg.isLoopHeader(1));
+		assertTrue(!cfg.isLoopHeader(0));
+		assertEquals(1, cfg.blockOf(5));
+	}
+
+	@Test
+	public void placePhisAtFactorialLoop() {
+		SsaForm ssa = new SsaForm(new ControlFlowGraph(factorial()));
+		// r20 and r21 change in the loop; r22 does not
+		int[] phis = ssa.phis(1);
+		assertEquals(2, phis.length);
+		assertEquals(20, ssa.registerOf(phis[0]));
+		assertEquals(21, ssa.registerOf(phis[1]));
+		// mul 21 21 20 reads both phis
+		assertArrayEquals(new int[] { phis[1], phis[0] }, ssa.uses(3));
+		// each phi merges the value from before the loop with its own update
+		assertEquals(ssa.definition(0), ssa.phiOperands(phis[0])[0]);
+		assertEquals(ssa.definition(4), ssa.phiOperands(phis[0])[1]);
+		assertEquals(0, ssa.phis(2).length);
+	}
+
+	@Test
+	public void shareSlotsBetweenTemporaries() {
+		// a chain of 30 registers, each only needed for the next
+		List<Instruction> prog = new ArrayList<>();
+		prog.add(new LinInstruction("f0", 0, 1));
+		for (int r = 1; r != 30; r++) {
+			prog.add(new AddInstruction("f" + r, r, r - 1, r - 1));
+		}
+		prog.add(new OutInstruction("f30", 29));
+		RegisterAllocation allocation = RegisterAllocation.of(Bytecode.compile(prog, REGISTERS));
+		assertTrue(allocation.getSlotCount() <= 2);
+		assertEquals(0, allocation.getLoads().length);
+		assertEquals(0, allocation.getSaves(prog.size()).length);
+	}
+
+	@Test
+	public void keepLoopRegistersInSlots() {
+		RegisterAllocation allocation = RegisterAllocation.of(factorial());
+		assertEquals(3, allocation.getSlotCount());
+		// written in the loop, so saved at the end rather than written through
+		assertTrue(!allocation.writesThrough(3));
+		assertEquals(4, allocation.getSaves(7).length);
+		// every register is written before it is read
+		assertEquals(0, allocation.getLoads().length);
+	}
+
+	@Test
+	public void compileRandomProgramsLikeTheBytecodeEngine() {
+		Random random = new Random(11);
+		for (int n = 0; n != 500; n++) {
+			Bytecode code = Bytecode.compile(randomProgram(random), REGISTERS);
+			assertNotNull(code);
+			int[] initial = new int[REGISTERS];
+			for (int r = 0; r != REGISTERS; r++) {
+				initial[r] = random.nextInt(7) - 2;
+			}
+			CompiledProgram compiled = JvmCompiler.compile(code);
+			assertNotNull(compiled);
+
+			int[] expected = initial.clone();
+			CollectingOutputSink expectedOutput = new CollectingOutputSink();
+			// whether each fails, but not its message, which the JIT may drop
+			boolean expectedFailure = false;
+			try {
+				code.execute(expected, expectedOutput);
+			} catch (ArithmeticException e) {
+				expectedFailure = true;
+			}
+
+			int[] actual = initial.clone();
+			CollectingOutputSink actualOutput = new CollectingOutputSink();
+			boolean actualFailure = false;
+			try {
+				compiled.run(actual, actualOutput);
+			} catch (ArithmeticException e) {
+				actualFailure = true;
+			}
+
+			String program = code.toString();
+			assertEquals(program, expectedFailure, actualFailure);
+			assertArrayEquals(program, expected, actual);
+			assertEquals(program, expectedOutput.toString(), actualOutput.toString());
+		}
+	}
+
+	private static Bytecode factorial() {
+		List<Instruction> prog = new ArrayList<>();
+		Labels labels = new Labels();
+		assertTrue(new Translator("code.sml").readAndTranslate(labels, prog));
+		return new Program("factorial", prog, labels).getBytecode(REGISTERS);
+	}
+
+	// = a program using registers 0 to 7 at random, with forward branches and
+	// counted loops (counting in registers 8 and up, with 1 in register 31)
+
+	static List<Instruction> randomProgram(Random random) {
+		List<Instruction> prog = new ArrayList<>();
+		prog.add(new LinInstruction("f0", 31, 1));
+		int loops = 0;
+		int loopStart = -1;
+		int pendingLabel = -1;
+		for (int i = 0; i != 30; i++) {
+			int label = prog.size();
+			if (loopStart == -1 && pendingLabel == -1 && loops < 3 && random.nextInt(8) == 0) {
+				prog.add(new LinInstruction("f" + label, 8 + loops, 2 + random.nextInt(3)));
+				loopStart = prog.size();
+				continue;
+			}
+			if (loopStart != -1 && random.nextInt(6) == 0) {
+				prog.add(new SubInstruction("f" + label, 8 + loops, 8 + loops, 31));
+				prog.add(new BnzInstruction("f" + (label + 1), 8 + loops, "f" + loopStart));
+				loops++;
+				loopStart = -1;
+				continue;
+			}
+			int a = random.nextInt(8);
+			int b = random.nextInt(8);
+			int result = random.nextInt(8);
+			int kind = random.nextInt(8);
+			if (kind == 5 && (pendingLabel != -1 || loopStart != -1)) {
+				// no branch while one is pending or in a loop, so a lin
+				kind = 7;
+			}
+			switch (kind) {
+			case 0:
+				prog.add(new AddInstruction("f" + label, result, a, b));
+				break;
+			case 1:
+				prog.add(new SubInstruction("f" + label, result, a, b));
+				break;
+			case 2:
+				prog.add(new MulInstruction("f" + label, result, a, b));
+				break;
+			case 3:
+				prog.add(new DivInstruction("f" + label, result, a, b));
+				break;
+			case 4:
+				prog.add(new OutInstruction("f" + label, a));
+				break;
+			case 5:
+				pendingLabel = label + 2 + random.nextInt(4);
+				prog.add(new BnzInstruction("f" + label, a, "f" + pendingLabel));
+				break;
+			default:
+				prog.add(new LinInstruction("f" + label, result, random.nextInt(9) - 4));
+			}
+			if (pendingLabel != -1 && pendingLabel < prog.size()) {
+				pendingLabel = -1;
+			}
+		}
+		if (loopStart != -1) {
+			int label = prog.size();
+			prog.add(new SubInstruction("f" + label, 8 + loops, 8 + loops, 31));
+			prog.add(new BnzInstruction("f" + (label + 1), 8 + loops, "f" + loopStart));
+		}
+		while (pendingLabel >= prog.size()) {
+			prog.add(new OutInstruction("f" + prog.size(), random.nextInt(8)));
+		}
+		Labels labels = new Labels();
+		for (int i = 0; i != prog.size(); i++) {
+			labels.addLabel("f" + i);
+		}
+		return new Program("random", prog, labels).getInstructions();
+	}
+
+}
@@ -1,35 +1,58 @@
 package sml;
 
+import java.util.Arrays;
+
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 
 /**
  * This class ....
- * 
- * An instance contains 32 registers and methods to access and change them
- * 
+ *
+ * An instance contains a number of int registers (32 unless another number
+ * is given) and methods to access and change them. It also has a bank of
+ * long registers with the same numbers, used by the long instructions, which
+ * is only created when one of them is first used.
+ *
  * @author someone
  */
 
 @Data
+@EqualsAndHashCode(doNotUseGetters = true)
 public class Registers {
 
-	private final static int NUMBEROFREGISTERS = 32;
+	public final static int NUMBEROFREGISTERS = 32;
 	private int registers[];
+	private long longRegisters[];
 
-	// Constructor: an instance whose registers are set to 0
+	// Constructor: an instance with NUMBEROFREGISTERS registers set to 0
 
-	{
-		registers = new int[NUMBEROFREGISTERS];
+	public Registers() {
+		this(NUMBEROFREGISTERS);
 	}
 
-	public Registers() {
-		for (int i = 0; i != registers.length; i++) {
-			registers[i] = 0;
+	// Constructor: an instance with count registers set to 0
+
+	public Registers(int count) {
+		registers = new int[count];
+	}
+
+	// = the number of registers
+
+	public int size() {
+		return registers.length;
+	}
+
+	// Set every register back to 0, so the instance can be reused.
+
+	public void clear() {
+		Arrays.fill(registers, 0);
+		if (longRegisters != null) {
+			Arrays.fill(longRegisters, 0);
 		}
 	}
 
 	// Set register i to v.
-	// Precondition: 0 <= i <= NUMBEROFREGISTERS
+	// Precondition: 0 <= i < size()
 
 	public void setRegister(int i, int v) {
 		registers[i] = v;
@@ -38,4 +61,38 @@ public class Registers {
 	public int getRegister(int i) {
 		return registers[i];
 	}
-}
\ No newline at end of file
+
+	// = whether the long registers have been created
+
+	public boolean hasLongRegisters() {
+		return longRegisters != null;
+	}
+
+	// = the long registers, created when first needed
+
+	public long[] getLongRegisters() {
+		if (longRegisters == null) {
+			longRegisters = new long[registers.length];
+		}
+		return longRegisters;
+	}
+
+	// Set long register i to v.
+	// Precondition: 0 <= i < size()
+
+	public void setLongRegister(int i, long v) {
+		getLongRegisters()[i] = v;
+	}
+
+	public long getLongRegister(int i) {
+		return getLongRegisters()[i];
+	}
+
+	// = the registers, and the long registers if they have been created
+
+	@Override
+	public String toString() {
+		return "Registers(registers=" + Arrays.toString(registers)
+				+ (longRegisters != null ? ", longRegisters=" + Arrays.toString(longRegisters) : "") + ")";
+	}
+}
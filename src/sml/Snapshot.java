@@ -0,0 +1,217 @@
+package sml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The state of a Machine between runs: its pc, its registers and how many
+ * values it had written to its output, together with a fingerprint of its
+ * program. Machine.resume continues from a snapshot in any JVM given the same
+ * program, and the same snapshot can be resumed any number of times, or
+ * forked with different register values, to continue it several ways.
+ *
+ * A run can be snapshotted wherever it stops. To checkpoint a long run, give
+ * the machine ExecutionLimits; when they stop it, at a backward branch, take
+ * a snapshot, save it and resume it with new limits.
+ *
+ * File format (big-endian, as written by DataOutputStream):
+ * <pre>
+ * int     MAGIC
+ * int     VERSION
+ * long    fingerprint of the program
+ * int     pc
+ * long    output position
+ * int     n, the number of registers
+ * int[n]  the registers
+ * boolean whether the long registers follow
+ * long[n] the long registers, if present
+ * long    CRC-32 of everything above
+ * </pre>
+ */
+public final class Snapshot {
+
+	private static final int MAGIC = 0x534d4c53; // "SMLS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8 + 4; // up to the registers
+	private static final int TRAILER_SIZE = 1 + 8; // after the registers, without long ones
+
+	private final long fingerprint;
+	private final int pc;
+	private final int[] registers;
+	private final long[] longRegisters;
+	private final long outputPosition;
+
+	// A snapshot of a machine running the program with fingerprint
+	// fingerprint, holding copies of registers
+
+	Snapshot(long fingerprint, int pc, Registers registers, long outputPosition) {
+		this(fingerprint, pc, registers.getRegisters().clone(),
+				registers.hasLongRegisters() ? registers.getLongRegisters().clone() : null, outputPosition);
+	}
+
+	private Snapshot(long fingerprint, int pc, int[] registers, long[] longRegisters, long outputPosition) {
+		this.fingerprint = fingerprint;
+		this.pc = pc;
+		this.registers = registers;
+		this.longRegisters = longRegisters;
+		this.outputPosition = outputPosition;
+	}
+
+	// = the fingerprint of the program the snapshot was taken of
+
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	// = the index of the instruction to execute next
+
+	public int getPc() {
+		return pc;
+	}
+
+	// = the number of registers
+
+	public int getRegisterCount() {
+		return registers.length;
+	}
+
+	public int getRegister(int i) {
+		return registers[i];
+	}
+
+	// = the number of values the machine had written to its output, so that
+	// output saved beyond it can be discarded before resuming
+
+	public long getOutputPosition() {
+		return outputPosition;
+	}
+
+	// = a continuation of this snapshot with register i set to v
+
+	public Snapshot fork(int i, int v) {
+		int[] registers = this.registers.clone();
+		registers[i] = v;
+		return new Snapshot(fingerprint, pc, registers, longRegisters, outputPosition);
+	}
+
+	// Copy the registers of the snapshot to registers, which must have as
+	// many.
+
+	void restore(Registers registers) {
+		System.arraycopy(this.registers, 0, registers.getRegisters(), 0, this.registers.length);
+		if (longRegisters != null) {
+			System.arraycopy(longRegisters, 0, registers.getLongRegisters(), 0, longRegisters.length);
+		}
+	}
+
+	// = a fingerprint of prog, which differs between programs that differ
+	// in any instruction
+
+	public static long fingerprint(List<Instruction> prog) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (Instruction ins : prog) {
+				digest.update((ins + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			return ByteBuffer.wrap(digest.digest()).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Write the snapshot to file, replacing it atomically.
+	// return "the snapshot was saved"
+
+	public boolean save(Path file) {
+		try {
+			Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), "snapshot", ".tmp");
+			try {
+				CRC32 crc = new CRC32();
+				try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), crc))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeLong(fingerprint);
+					out.writeInt(pc);
+					out.writeLong(outputPosition);
+					out.writeInt(registers.length);
+					for (int register : registers) {
+						out.writeInt(register);
+					}
+					out.writeBoolean(longRegisters != null);
+					if (longRegisters != null) {
+						for (long register : longRegisters) {
+							out.writeLong(register);
+						}
+					}
+					out.flush();
+					out.writeLong(crc.getValue());
+				}
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporary);
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.format("Error saving snapshot %s: %s.%n", file, e);
+			return false;
+		}
+	}
+
+	// = the snapshot saved in file, or null if it cannot be read or is not a
+	// valid snapshot
+
+	public static Snapshot load(Path file) {
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), crc))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				System.err.format("Error loading snapshot %s: not a snapshot.%n", file);
+				return null;
+			}
+			long fingerprint = in.readLong();
+			int pc = in.readInt();
+			long outputPosition = in.readLong();
+			int count = in.readInt();
+			// the count is checked against the file before the CRC is, so a
+			// damaged count cannot make it allocate more than the file holds
+			if (count < 0 || HEADER_SIZE + 4L * count + TRAILER_SIZE > Files.size(file)) {
+				System.err.format("Error loading snapshot %s: damaged.%n", file);
+				return null;
+			}
+			int[] registers = new int[count];
+			for (int i = 0; i != registers.length; i++) {
+				registers[i] = in.readInt();
+			}
+			long[] longRegisters = null;
+			if (in.readBoolean()) {
+				longRegisters = new long[registers.length];
+				for (int i = 0; i != longRegisters.length; i++) {
+					longRegisters[i] = in.readLong();
+				}
+			}
+			long checksum = crc.getValue();
+			if (in.readLong() != checksum || pc < 0) {
+				System.err.format("Error loading snapshot %s: damaged.%n", file);
+				return null;
+			}
+			return new Snapshot(fingerprint, pc, registers, longRegisters, outputPosition);
+		} catch (IOException | RuntimeException e) {
+			System.err.format("Error loading snapshot %s: %s.%n", file, e);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package sml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotTest {
+
+	private Path file;
+	private Program program;
+
+	@Before
+	public void setup() throws IOException {
+		file = Files.createTempFile("sml", ".snapshot");
+		program = new Translator("code.sml").translate();
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void resumeSavedSnapshotOnEveryEngine() {
+		for (Engine engine : Engine.values()) {
+			Snapshot snapshot = stopFactorial(engine);
+			assertEquals(3, snapshot.getPc());
+			assertEquals(5, snapshot.getRegister(20));
+			assertEquals(0, snapshot.getOutputPosition());
+			assertTrue(snapshot.save(file));
+
+			Snapshot loaded = Snapshot.load(file);
+			assertNotNull(loaded);
+			CollectingOutputSink output = new CollectingOutputSink();
+			Machine m = new Machine();
+			m.setProgram(new Translator("code.sml").translate());
+			m.setEngine(engine);
+			m.setOutput(output);
+			m.resume(loaded);
+			assertEquals(720, m.getRegisters().getRegister(21));
+			assertEquals(7, m.getPc());
+			assertEquals("720" + System.lineSeparator(), output.toString());
+		}
+	}
+
+	@Test
+	public void countOutputAcrossResumedRuns() {
+		String source = "f0 lin 20 5\nf1 lin 22 1\nf2 out 20\nf3 sub 20 20 22\nf4 bnz 20 f2\n";
+		Program countdown = new Translator(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8))).translate();
+		for (Engine engine : Engine.values()) {
+			Machine m = new Machine();
+			m.setProgram(countdown);
+			m.setEngine(engine);
+			// stopped at the first branch back to f2, having written 5
+			Snapshot first = stop(m, 4, null);
+			assertEquals(1, first.getOutputPosition());
+			// stopped at the next, having written 4 to a new output
+			Snapshot second = stop(m, 2, first);
+			assertEquals(2, second.getOutputPosition());
+
+			CollectingOutputSink output = new CollectingOutputSink();
+			m.setOutput(output);
+			m.setLimits(null);
+			m.resume(second);
+			assertEquals("3" + System.lineSeparator() + "2" + System.lineSeparator(), output.toString());
+			assertEquals(4, m.snapshot().getOutputPosition());
+		}
+	}
+
+	@Test
+	public void forkSnapshot() throws Exception {
+		// stopped with r21 = 6 and r20 = 5 about to be multiplied in
+		Snapshot snapshot = stopFactorial(Engine.INTERPRETER);
+		try (ExecutionService service = new ExecutionService(2)) {
+			List<Future<ExecutionResult>> results = service.forkAll(program, snapshot, 20, new int[] { 2, 3, 4 });
+			assertEquals(6 * 2, results.get(0).get().getRegisters()[21]);
+			assertEquals(6 * 3 * 2, results.get(1).get().getRegisters()[21]);
+			assertEquals(6 * 4 * 3 * 2, results.get(2).get().getRegisters()[21]);
+		}
+		assertEquals(5, snapshot.getRegister(20));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectSnapshotOfAnotherProgram() {
+		Snapshot snapshot = stopFactorial(Engine.INTERPRETER);
+		List<Instruction> instructions = new ArrayList<>(program.getInstructions());
+		instructions.set(0, new LinInstruction("f0", 20, 7));
+		Machine m = new Machine();
+		m.setProgram(new Program("other", instructions, program.getLabels()));
+		m.resume(snapshot);
+	}
+
+	@Test
+	public void rejectDamagedSnapshot() throws IOException {
+		assertTrue(stopFactorial(Engine.BYTECODE).save(file));
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[bytes.length / 2] ^= 1;
+		Files.write(file, bytes);
+		assertNull(Snapshot.load(file));
+		// a register count far beyond what the file holds
+		bytes[bytes.length / 2] ^= 1;
+		ByteBuffer.wrap(bytes).putInt(4 + 4 + 8 + 4 + 8, Integer.MAX_VALUE - 8);
+		Files.write(file, bytes);
+		assertNull(Snapshot.load(file));
+	}
+
+	// = a snapshot of the factorial of 6 stopped by a limit of 5 instructions
+	// at its first branch back to f3
+
+	private Snapshot stopFactorial(Engine engine) {
+		ExecutionLimits limits = new ExecutionLimits();
+		limits.setMaxSteps(5);
+		Machine m = new Machine();
+		m.setProgram(program);
+		m.setEngine(engine);
+		m.setLimits(limits);
+		m.setOutput(new NullOutputSink());
+		try {
+			m.execute();
+			fail("Expected the run to be stopped");
+		} catch (ExecutionAbortedException e) {
+			assertEquals(ExecutionAbortedException.Reason.STEP_LIMIT, e.getReason());
+		}
+		return m.snapshot();
+	}
+
+	// = the snapshot of m stopped by a limit of maxSteps instructions, having
+	// run its program from the start or resumed from snapshot if it is not
+	// null, writing to a new output
+
+	private static Snapshot stop(Machine m, long maxSteps, Snapshot snapshot) {
+		ExecutionLimits limits = new ExecutionLimits();
+		limits.setMaxSteps(maxSteps);
+		m.setLimits(limits);
+		m.setOutput(new NullOutputSink());
+		try {
+			if (snapshot == null) {
+				m.execute();
+			} else {
+				m.resume(snapshot);
+			}
+			fail("Expected the run to be stopped");
+		} catch (ExecutionAbortedException e) {
+			assertEquals(ExecutionAbortedException.Reason.STEP_LIMIT, e.getReason());
+		}
+		return m.snapshot();
+	}
+
+}
@@ -0,0 +1,259 @@
+package sml;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the lines of an SML program and splits them into words, working on
+ * the bytes of the source directly. Files are memory-mapped and streams are
+ * read through one reusable buffer, so memory use does not grow with the
+ * size of the program. Integer operands are parsed from the bytes without
+ * creating a String, and opcodes are looked up in a small cache of the
+ * Strings already created for them.
+ *
+ * Lines end with "\n", "\r\n" or "\r"; words are separated by any run of
+ * whitespace (characters up to and including ' ').
+ */
+public class SourceReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int SYMBOL_CACHE_SIZE = 64;
+
+	private ByteBuffer buffer;
+	private ReadableByteChannel source;
+	private ReadableByteChannel channel; // null once everything is in buffer
+
+	private int next; // start of the next line
+	private int pos; // position of the next word in the current line
+	private int end; // end of the current line
+
+	private final String[] symbols = new String[SYMBOL_CACHE_SIZE];
+	private byte[] scratch = new byte[64];
+
+	// A reader over the bytes between buffer's position and limit.
+
+	public SourceReader(ByteBuffer buffer) {
+		this.buffer = buffer.slice();
+	}
+
+	// A reader over everything that can be read from channel.
+
+	public SourceReader(ReadableByteChannel channel) {
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		this.buffer.limit(0);
+		this.source = channel;
+		this.channel = channel;
+	}
+
+	// A reader over everything that can be read from in.
+
+	public SourceReader(InputStream in) {
+		this(Channels.newChannel(in));
+	}
+
+	// = a reader over the file at path, which is memory-mapped if it is small
+	// enough to be mapped in one piece
+
+	public static SourceReader open(Path path) throws IOException {
+		FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+		if (file.size() > Integer.MAX_VALUE) {
+			return new SourceReader(file);
+		}
+		try {
+			return new SourceReader(file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()));
+		} finally {
+			file.close();
+		}
+	}
+
+	// Move to the next line, returning false if there are none left.
+
+	public boolean nextLine() throws IOException {
+		int i = next;
+		while (true) {
+			int limit = buffer.limit();
+			while (i < limit) {
+				byte b = buffer.get(i);
+				if (b == '\n' || b == '\r') {
+					if (b == '\r' && i + 1 == limit && channel != null) {
+						// Need the next byte to know if this is "\r\n".
+						break;
+					}
+					pos = next;
+					end = i;
+					next = b == '\r' && i + 1 < limit && buffer.get(i + 1) == '\n' ? i + 2 : i + 1;
+					return true;
+				}
+				i++;
+			}
+			if (channel == null) {
+				if (next == limit) {
+					return false;
+				}
+				pos = next;
+				end = limit;
+				next = limit;
+				return true;
+			}
+			i -= next;
+			fill();
+		}
+	}
+
+	// = a 64-bit FNV-1a hash of the bytes of the current line, which is left
+	// to be read
+
+	public long lineHash() {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = pos; i != end; i++) {
+			hash = (hash ^ (buffer.get(i) & 0xff)) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	// = the next word of the current line ("" if there are none left)
+
+	public String nextWord() {
+		int start = skipWhitespace();
+		return start == pos ? "" : decode(start, pos);
+	}
+
+	// = the next word of the current line ("" if there are none left),
+	// reusing the String returned for an equal word if there is one cached
+
+	public String nextSymbol() {
+		int start = skipWhitespace();
+		int length = pos - start;
+		if (length == 0) {
+			return "";
+		}
+		int hash = 0;
+		for (int i = start; i != pos; i++) {
+			hash = 31 * hash + buffer.get(i);
+		}
+		int slot = hash & (SYMBOL_CACHE_SIZE - 1);
+		String symbol = symbols[slot];
+		if (symbol != null && matches(symbol, start)) {
+			return symbol;
+		}
+		symbol = decode(start, pos);
+		symbols[slot] = symbol;
+		return symbol;
+	}
+
+	// Add the remaining words of the current line to operands.
+
+	public void readOperands(Operands operands) {
+		for (int start = skipWhitespace(); start != pos; start = skipWhitespace()) {
+			if (!readInteger(start, operands)) {
+				operands.addWord(decode(start, pos));
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (source != null) {
+			source.close();
+		}
+	}
+
+	// Skip to the end of the next word of the current line and return its
+	// start (= pos if there is no next word).
+
+	private int skipWhitespace() {
+		while (pos < end && (buffer.get(pos) & 0xff) <= ' ') {
+			pos++;
+		}
+		int start = pos;
+		while (pos < end && (buffer.get(pos) & 0xff) > ' ') {
+			pos++;
+		}
+		return start;
+	}
+
+	// If the word from start to pos is a decimal int literal add its value
+	// to operands and return true.
+
+	private boolean readInteger(int start, Operands operands) {
+		byte first = buffer.get(start);
+		int i = pos - start > 1 && (first == '-' || first == '+') ? start + 1 : start;
+		if (pos - i > 10) {
+			return false;
+		}
+		long value = 0;
+		for (; i != pos; i++) {
+			byte b = buffer.get(i);
+			if (b < '0' || b > '9') {
+				return false;
+			}
+			value = 10 * value + (b - '0');
+		}
+		if (first == '-') {
+			value = -value;
+		}
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			return false;
+		}
+		operands.addInteger((int) value);
+		return true;
+	}
+
+	private boolean matches(String symbol, int start) {
+		if (symbol.length() != pos - start) {
+			return false;
+		}
+		for (int i = 0; i != symbol.length(); i++) {
+			if (symbol.charAt(i) != buffer.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String decode(int start, int stop) {
+		int length = stop - start;
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+		}
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, 2 * scratch.length)];
+		}
+		for (int i = 0; i != length; i++) {
+			scratch[i] = buffer.get(start + i);
+		}
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	// Move the unread bytes to the start of the buffer, growing it if the
+	// current line fills it, and read more from the channel.
+
+	private void fill() throws IOException {
+		buffer.position(next);
+		if (next == 0 && buffer.limit() == buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(2 * buffer.capacity());
+			larger.put(buffer);
+			buffer = larger;
+		} else {
+			buffer.compact();
+		}
+		next = 0;
+		int read = 0;
+		while (read == 0) {
+			read = channel.read(buffer);
+		}
+		buffer.flip();
+		if (read == -1) {
+			channel = null;
+		}
+	}
+
+}
@@ -0,0 +1,564 @@
+package sml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A Bytecode program in static single assignment form. Every write of a
+ * register defines a new value, as does every block where different values
+ * of a register meet (a phi), and every read of a register refers to the one
+ * value it sees, so the engines can tell which values are live instead of
+ * treating the register file as one shared array.
+ *
+ * The graph has the blocks of the ControlFlowGraph plus two nodes of its
+ * own: an entry node, which defines the initial value of every register the
+ * program mentions and leads to the first block, and an exit node, reached
+ * from every block control can leave the program from. Nodes are numbered
+ * like the blocks, with the entry node and then the exit node last.
+ *
+ * The registers written by the program are observed wherever the caller can
+ * see them: before every instruction that can fail, and at the exit. Each
+ * observation records the value of every written register at that point.
+ */
+public class SsaForm {
+
+	private static final String[] NAMES = { "add", "sub", "mul", "div", "out", "lin", "bnz", "addi", "addi_bnz" };
+
+	private final ControlFlowGraph cfg;
+	private final Bytecode code;
+	private final int entry;
+	private final int exit;
+	private final int[][] successors;
+	private final int[][] predecessors;
+	private final int[] order; // reverse postorder from the entry node
+	private final int[] dominators;
+
+	// registers mentioned by the program, ascending, and those it writes
+	private final int[] registers;
+	private final int[] written;
+
+	// values, by number, starting with the initial value of each register
+	private int valueCount;
+	private int[] valueRegisters = new int[64];
+	private int[] valueNodes = new int[64];
+	private int[] valueInstructions = new int[64]; // -1 unless an instruction
+	private int[][] phiOperands = new int[64][];
+
+	private final int[][] phis; // by node
+	private final int[] definitions; // by instruction, -1 if none
+	private final int[][] uses; // by instruction
+	private final int[][] observations; // by instruction, then the exit
+
+	public SsaForm(ControlFlowGraph cfg) {
+		this.cfg = cfg;
+		code = cfg.getBytecode();
+		int blocks = cfg.size();
+		entry = blocks;
+		exit = blocks + 1;
+
+		successors = new int[blocks + 2][];
+		predecessors = new int[blocks + 2][];
+		int[] exits = new int[0];
+		for (int block = 0; block != blocks; block++) {
+			successors[block] = cfg.successors(block);
+			predecessors[block] = cfg.predecessors(block);
+			if (cfg.isExit(block)) {
+				successors[block] = append(successors[block], exit);
+				exits = append(exits, block);
+			}
+		}
+		if (blocks == 0) {
+			successors[entry] = new int[] { exit };
+			predecessors[exit] = new int[] { entry };
+		} else {
+			successors[entry] = new int[] { 0 };
+			predecessors[0] = append(predecessors[0], entry);
+			predecessors[exit] = exits;
+		}
+		predecessors[entry] = new int[0];
+		successors[exit] = new int[0];
+
+		order = reversePostorder();
+		dominators = dominators();
+
+		int size = code.size();
+		int[] mentioned = new int[3 * size];
+		int[] writes = new int[size];
+		int mentionedCount = 0;
+		int writeCount = 0;
+		for (int i = 0; i != size; i++) {
+			for (int register : code.usedRegisters(i)) {
+				mentioned[mentionedCount++] = register;
+			}
+			if (code.definedRegister(i) != -1) {
+				mentioned[mentionedCount++] = code.definedRegister(i);
+				writes[writeCount++] = code.definedRegister(i);
+			}
+		}
+		registers = distinct(mentioned, mentionedCount);
+		written = distinct(writes, writeCount);
+
+		definitions = new int[size];
+		Arrays.fill(definitions, -1);
+		uses = new int[size][];
+		observations = new int[size + 1][];
+		for (int register : registers) {
+			newValue(register, entry, -1);
+		}
+		phis = placePhis();
+		rename();
+	}
+
+	// = the control flow graph of the program
+
+	public ControlFlowGraph getControlFlowGraph() {
+		return cfg;
+	}
+
+	// = the number of nodes, including the entry and exit nodes
+
+	public int nodeCount() {
+		return successors.length;
+	}
+
+	// = the node defining the initial values of the registers
+
+	public int entryNode() {
+		return entry;
+	}
+
+	// = the node control reaches when it leaves the program
+
+	public int exitNode() {
+		return exit;
+	}
+
+	// = the nodes control can pass to from the end of node; callers must not
+	// modify the result
+
+	public int[] successors(int node) {
+		return successors[node];
+	}
+
+	// = the nodes control can come from to the start of node, in the order
+	// of the operands of its phis; callers must not modify the result
+
+	public int[] predecessors(int node) {
+		return predecessors[node];
+	}
+
+	// = the nodes in reverse postorder from the entry node, so every node
+	// comes after its immediate dominator; callers must not modify the result
+
+	public int[] order() {
+		return order;
+	}
+
+	// = the immediate dominator of node (the entry node for itself)
+
+	public int dominator(int node) {
+		return dominators[node];
+	}
+
+	// = the registers written by the program, ascending, which is the order
+	// of the values in each observation; callers must not modify the result
+
+	public int[] observedRegisters() {
+		return written;
+	}
+
+	// = the number of values, which are numbered from 0
+
+	public int valueCount() {
+		return valueCount;
+	}
+
+	// = the register holding value
+
+	public int registerOf(int value) {
+		return valueRegisters[value];
+	}
+
+	// = the node defining value
+
+	public int nodeOf(int value) {
+		return valueNodes[value];
+	}
+
+	// = the instruction defining value, or -1 if it is a phi or an initial
+	// value
+
+	public int instructionOf(int value) {
+		return valueInstructions[value];
+	}
+
+	// = whether value is the initial value of its register
+
+	public boolean isEntry(int value) {
+		return valueNodes[value] == entry;
+	}
+
+	// = the values merged by phi value, one for each predecessor of its
+	// node, or null if value is not a phi; callers must not modify the result
+
+	public int[] phiOperands(int value) {
+		return phiOperands[value];
+	}
+
+	// = the phis at the start of node; callers must not modify the result
+
+	public int[] phis(int node) {
+		return phis[node];
+	}
+
+	// = the value defined by instruction index, or -1 if it defines none
+
+	public int definition(int index) {
+		return definitions[index];
+	}
+
+	// = the values read by instruction index, in operand order; callers must
+	// not modify the result
+
+	public int[] uses(int index) {
+		return uses[index];
+	}
+
+	// = the values of the observed registers just before instruction index,
+	// or at the exit if index is the number of instructions, or null if the
+	// registers are not observed there; callers must not modify the result
+
+	public int[] observations(int index) {
+		return observations[index];
+	}
+
+	// representation of this instance, one node per paragraph
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int node : order) {
+			s.append(node == entry ? "entry" : node == exit ? "exit" : "B" + node).append(":\n");
+			if (node == entry) {
+				for (int value = 0; value != registers.length; value++) {
+					s.append("  v").append(value).append(" = r").append(valueRegisters[value]).append('\n');
+				}
+			}
+			for (int phi : phis[node]) {
+				s.append("  v").append(phi).append(" = phi");
+				for (int operand : phiOperands[phi]) {
+					s.append(" v").append(operand);
+				}
+				s.append(" ; r").append(valueRegisters[phi]).append('\n');
+			}
+			if (node < entry) {
+				for (int i = cfg.first(node); i != cfg.end(node); i++) {
+					s.append("  ");
+					if (definitions[i] != -1) {
+						s.append('v').append(definitions[i]).append(" = ");
+					}
+					s.append(NAMES[code.opcodeOf(i)]);
+					for (int value : uses[i]) {
+						s.append(" v").append(value);
+					}
+					if (code.opcodeOf(i) == Bytecode.LIN) {
+						s.append(' ').append(code.getCode()[code.offsetOf(i) + 2]);
+					} else if (code.opcodeOf(i) == Bytecode.ADDI || code.opcodeOf(i) == Bytecode.ADDI_BNZ) {
+						s.append(' ').append(code.getCode()[code.offsetOf(i) + 3]);
+					}
+					if (code.isBranch(i)) {
+						s.append(" B").append(cfg.blockOf(code.targetOf(i)));
+					}
+					s.append('\n');
+				}
+			}
+		}
+		return s.toString();
+	}
+
+	private int[] reversePostorder() {
+		int nodes = successors.length;
+		int[] postorder = new int[nodes];
+		int count = 0;
+		int[] stack = new int[nodes];
+		int[] next = new int[nodes];
+		boolean[] seen = new boolean[nodes];
+		int top = 0;
+		stack[0] = entry;
+		seen[entry] = true;
+		while (top >= 0) {
+			int node = stack[top];
+			if (next[node] < successors[node].length) {
+				int successor = successors[node][next[node]++];
+				if (!seen[successor]) {
+					seen[successor] = true;
+					stack[++top] = successor;
+				}
+			} else {
+				postorder[count++] = node;
+				top--;
+			}
+		}
+		int[] order = new int[count];
+		for (int i = 0; i != count; i++) {
+			order[i] = postorder[count - 1 - i];
+		}
+		return order;
+	}
+
+	// = the immediate dominator of each node (-1 if it is unreachable), by
+	// the iterative algorithm of Cooper, Harvey and Kennedy
+
+	private int[] dominators() {
+		int[] positions = new int[successors.length];
+		Arrays.fill(positions, -1);
+		for (int i = 0; i != order.length; i++) {
+			positions[order[i]] = i;
+		}
+		int[] dominators = new int[successors.length];
+		Arrays.fill(dominators, -1);
+		dominators[entry] = entry;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 1; i < order.length; i++) {
+				int node = order[i];
+				int dominator = -1;
+				for (int predecessor : predecessors[node]) {
+					if (dominators[predecessor] != -1) {
+						dominator = dominator == -1 ? predecessor : intersect(predecessor, dominator, dominators, positions);
+					}
+				}
+				if (dominators[node] != dominator) {
+					dominators[node] = dominator;
+					changed = true;
+				}
+			}
+		}
+		return dominators;
+	}
+
+	private static int intersect(int a, int b, int[] dominators, int[] positions) {
+		while (a != b) {
+			while (positions[a] > positions[b]) {
+				a = dominators[a];
+			}
+			while (positions[b] > positions[a]) {
+				b = dominators[b];
+			}
+		}
+		return a;
+	}
+
+	// Place a phi for each written register at the iterated dominance
+	// frontier of the nodes writing it, returning the phis of each node.
+
+	private int[][] placePhis() {
+		int nodes = successors.length;
+		List<List<Integer>> frontiers = new ArrayList<>();
+		for (int node = 0; node != nodes; node++) {
+			frontiers.add(new ArrayList<Integer>());
+		}
+		for (int node = 0; node != nodes; node++) {
+			if (predecessors[node].length < 2 || dominators[node] == -1) {
+				continue;
+			}
+			for (int predecessor : predecessors[node]) {
+				for (int runner = predecessor; runner != dominators[node] && dominators[runner] != -1; runner = dominators[runner]) {
+					List<Integer> frontier = frontiers.get(runner);
+					if (frontier.isEmpty() || frontier.get(frontier.size() - 1).intValue() != node) {
+						frontier.add(node);
+					}
+				}
+			}
+		}
+
+		List<List<Integer>> writers = new ArrayList<>();
+		for (int i = 0; i != written.length; i++) {
+			writers.add(new ArrayList<Integer>());
+		}
+		for (int i = 0; i != code.size(); i++) {
+			int register = code.definedRegister(i);
+			if (register != -1) {
+				writers.get(Arrays.binarySearch(written, register)).add(cfg.blockOf(i));
+			}
+		}
+
+		int[][] phis = new int[nodes][0];
+		int[] placed = new int[nodes];
+		int[] queued = new int[nodes];
+		int[] work = new int[nodes];
+		for (int w = 0; w != written.length; w++) {
+			int stamp = w + 1;
+			int count = 0;
+			queued[entry] = stamp;
+			work[count++] = entry;
+			for (int node : writers.get(w)) {
+				if (queued[node] != stamp) {
+					queued[node] = stamp;
+					work[count++] = node;
+				}
+			}
+			while (count != 0) {
+				for (int node : frontiers.get(work[--count])) {
+					if (placed[node] != stamp) {
+						placed[node] = stamp;
+						int phi = newValue(written[w], node, -1);
+						phiOperands[phi] = new int[predecessors[node].length];
+						phis[node] = append(phis[node], phi);
+						if (queued[node] != stamp) {
+							queued[node] = stamp;
+							work[count++] = node;
+						}
+					}
+				}
+			}
+		}
+		return phis;
+	}
+
+	// Give every read the value it sees by walking the dominator tree,
+	// keeping the current value of each register.
+
+	private void rename() {
+		int nodes = successors.length;
+		int[] children = new int[nodes];
+		for (int node : order) {
+			if (node != entry) {
+				children[dominators[node]]++;
+			}
+		}
+		int[][] tree = new int[nodes][];
+		for (int node = 0; node != nodes; node++) {
+			tree[node] = new int[children[node]];
+			children[node] = 0;
+		}
+		for (int node : order) {
+			if (node != entry) {
+				tree[dominators[node]][children[dominators[node]]++] = node;
+			}
+		}
+
+		// the initial value of each register is numbered like the register
+		int[] current = new int[registers.length];
+		for (int r = 0; r != registers.length; r++) {
+			current[r] = r;
+		}
+
+		// undo log of (register, previous value) pairs
+		int[] log = new int[64];
+		int logSize = 0;
+		int[] marks = new int[nodes];
+		int[] stack = new int[nodes];
+		int top = 0;
+		stack[0] = entry;
+		Arrays.fill(children, -1);
+		while (top >= 0) {
+			int node = stack[top];
+			if (children[node] == -1) {
+				children[node] = 0;
+				marks[node] = logSize;
+				int first = node < entry ? cfg.first(node) : 0;
+				int end = node < entry ? cfg.end(node) : 0;
+				int needed = logSize + 2 * (phis[node].length + end - first);
+				if (needed > log.length) {
+					log = Arrays.copyOf(log, Math.max(needed, 2 * log.length));
+				}
+				for (int phi : phis[node]) {
+					int r = Arrays.binarySearch(registers, valueRegisters[phi]);
+					log[logSize++] = r;
+					log[logSize++] = current[r];
+					current[r] = phi;
+				}
+				if (node == exit) {
+					observations[code.size()] = observe(current);
+				}
+				for (int i = first; i != end; i++) {
+					if (code.canFail(i)) {
+						observations[i] = observe(current);
+					}
+					int[] read = code.usedRegisters(i);
+					for (int j = 0; j != read.length; j++) {
+						read[j] = current[Arrays.binarySearch(registers, read[j])];
+					}
+					uses[i] = read;
+					int register = code.definedRegister(i);
+					if (register != -1) {
+						int r = Arrays.binarySearch(registers, register);
+						log[logSize++] = r;
+						log[logSize++] = current[r];
+						current[r] = definitions[i] = newValue(register, node, i);
+					}
+				}
+				for (int successor : successors[node]) {
+					int j = indexOf(predecessors[successor], node);
+					for (int phi : phis[successor]) {
+						phiOperands[phi][j] = current[Arrays.binarySearch(registers, valueRegisters[phi])];
+					}
+				}
+			}
+			if (children[node] < tree[node].length) {
+				stack[++top] = tree[node][children[node]++];
+			} else {
+				while (logSize > marks[node]) {
+					logSize -= 2;
+					current[log[logSize]] = log[logSize + 1];
+				}
+				top--;
+			}
+		}
+	}
+
+	private int[] observe(int[] current) {
+		int[] values = new int[written.length];
+		for (int w = 0; w != written.length; w++) {
+			values[w] = current[Arrays.binarySearch(registers, written[w])];
+		}
+		return values;
+	}
+
+	private int newValue(int register, int node, int instruction) {
+		if (valueCount == valueRegisters.length) {
+			int capacity = 2 * valueCount;
+			valueRegisters = Arrays.copyOf(valueRegisters, capacity);
+			valueNodes = Arrays.copyOf(valueNodes, capacity);
+			valueInstructions = Arrays.copyOf(valueInstructions, capacity);
+			phiOperands = Arrays.copyOf(phiOperands, capacity);
+		}
+		valueRegisters[valueCount] = register;
+		valueNodes[valueCount] = node;
+		valueInstructions[valueCount] = instruction;
+		return valueCount++;
+	}
+
+	private static int indexOf(int[] array, int element) {
+		for (int i = 0; i != array.length; i++) {
+			if (array[i] == element) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int[] append(int[] array, int element) {
+		int[] result = Arrays.copyOf(array, array.length + 1);
+		result[array.length] = element;
+		return result;
+	}
+
+	// = the distinct elements of the first length elements of array,
+	// ascending (array is sorted in place)
+
+	private static int[] distinct(int[] array, int length) {
+		Arrays.sort(array, 0, length);
+		int count = 0;
+		for (int i = 0; i != length; i++) {
+			if (count == 0 || array[count - 1] != array[i]) {
+				array[count++] = array[i];
+			}
+		}
+		return Arrays.copyOf(array, count);
+	}
+
+}
@@ -0,0 +1,188 @@
+package sml;
+
+import java.util.Arrays;
+
+/**
+ * Fuses the instruction sequences an ExecutionProfile found hot into
+ * superinstructions, so that the bytecode engine dispatches once for the
+ * whole sequence. Arithmetic instructions (add, sub, mul and ADDI) are
+ * fused in pairs, either alone (ARITH2) or with the <code>bnz</code> after
+ * them: one arithmetic instruction and a <code>bnz</code> become ARITH_BNZ,
+ * and two, such as the mul, sub and bnz of the factorial loop, become
+ * ARITH2_BNZ.
+ *
+ * Only sequences that always run straight through are fused: none of their
+ * instructions but the first is branched to, and none but the last
+ * branches. A sequence is hot if its first instruction ran at least
+ * HOT_SHARE of all the instructions the profile counted; the rest of the
+ * program is left as it is.
+ *
+ * Superinstructions only exist in Bytecode, which is run without limits.
+ * Optimizer returns code that has them as it is, JvmCompiler declines to
+ * compile it, and Bytecode gives no defined or used registers for them.
+ */
+public class Superinstructions {
+
+	private static final double HOT_SHARE = 0.01;
+
+	private final Bytecode code;
+	private final int[] slots;
+	private final ControlFlowGraph cfg;
+
+	private Superinstructions(Bytecode code) {
+		this.code = code;
+		this.slots = code.getCode();
+		this.cfg = new ControlFlowGraph(code);
+	}
+
+	// = code with the sequences that are hot by profile fused, where profile
+	// was recorded running the program code was lowered from; code itself if
+	// nothing is fused or profile is of a program of another size
+
+	public static Bytecode fuse(Bytecode code, ExecutionProfile profile) {
+		int size = code.size();
+		if (profile.size() != size) {
+			return code;
+		}
+		long[] counts = new long[size];
+		long total = 0;
+		for (int i = 0; i != size; i++) {
+			counts[i] = profile.getCount(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return code;
+		}
+		return new Superinstructions(code).fuse(counts, Math.max(1, (long) (HOT_SHARE * total)));
+	}
+
+	// = the code with every sequence whose first instruction ran at least
+	// hot times fused
+
+	private Bytecode fuse(long[] counts, long hot) {
+		int size = code.size();
+		// the instructions of the result, with branch targets as indexes of
+		// the instructions of code, and the result instruction each
+		// instruction of code became (part of)
+		int[][] instructions = new int[size][];
+		int[] fusedInto = new int[size];
+		int count = 0;
+		int length = 0;
+		for (int i = 0; i != size;) {
+			int[] instruction = counts[i] >= hot ? superinstruction(i) : null;
+			int n = instruction == null ? 1 : instruction[0] == Bytecode.ARITH2_BNZ ? 3 : 2;
+			if (instruction == null) {
+				instruction = original(i);
+			}
+			for (int j = i; j != i + n; j++) {
+				fusedInto[j] = count;
+			}
+			instructions[count++] = instruction;
+			length += instruction.length;
+			i += n;
+		}
+		if (count == size) {
+			return code;
+		}
+
+		int[] offsets = new int[count];
+		int[] result = new int[length];
+		int pc = 0;
+		for (int i = 0; i != count; i++) {
+			offsets[i] = pc;
+			System.arraycopy(instructions[i], 0, result, pc, instructions[i].length);
+			pc += instructions[i].length;
+		}
+		for (int i = 0; i != count; i++) {
+			int slot = Bytecode.targetSlot(instructions[i][0]);
+			if (slot != -1) {
+				// branches only go to the first instruction of a sequence
+				result[offsets[i] + slot] = offsets[fusedInto[instructions[i][slot]]];
+			}
+		}
+		return Bytecode.wrap(result);
+	}
+
+	// = the superinstruction for the longest sequence that can be fused
+	// starting at instruction i, or null if there is none
+
+	private int[] superinstruction(int i) {
+		if (!isArithmetic(i) || !isStraight(i + 1)) {
+			return null;
+		}
+		if (isArithmetic(i + 1)) {
+			if (isStraight(i + 2) && isBnz(i + 2)) {
+				return concat(Bytecode.ARITH2_BNZ, arithmetic(i), arithmetic(i + 1), branch(i + 2));
+			}
+			return concat(Bytecode.ARITH2, arithmetic(i), arithmetic(i + 1));
+		}
+		if (isBnz(i + 1)) {
+			return concat(Bytecode.ARITH_BNZ, arithmetic(i), branch(i + 1));
+		}
+		return null;
+	}
+
+	private boolean isArithmetic(int i) {
+		switch (slots[code.offsetOf(i)]) {
+		case Bytecode.ADD:
+		case Bytecode.SUB:
+		case Bytecode.MUL:
+		case Bytecode.ADDI:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private boolean isBnz(int i) {
+		return slots[code.offsetOf(i)] == Bytecode.BNZ;
+	}
+
+	// = whether instruction i, which may be past the end, is only ever run
+	// after instruction i - 1
+
+	private boolean isStraight(int i) {
+		return i < code.size() && cfg.first(cfg.blockOf(i)) != i;
+	}
+
+	// = the opcode and operands of arithmetic instruction i
+
+	private int[] arithmetic(int i) {
+		int pc = code.offsetOf(i);
+		return Arrays.copyOfRange(slots, pc, pc + 4);
+	}
+
+	// = the operands of bnz i, with its target as an instruction index
+
+	private int[] branch(int i) {
+		return new int[] { slots[code.offsetOf(i) + 1], code.targetOf(i) };
+	}
+
+	// = instruction i, with its target (if any) as an instruction index
+
+	private int[] original(int i) {
+		int pc = code.offsetOf(i);
+		int[] instruction = Arrays.copyOfRange(slots, pc, pc + Bytecode.length(slots[pc]));
+		int slot = Bytecode.targetSlot(slots[pc]);
+		if (slot != -1) {
+			instruction[slot] = code.targetOf(i);
+		}
+		return instruction;
+	}
+
+	private static int[] concat(int op, int[]... parts) {
+		int length = 1;
+		for (int[] part : parts) {
+			length += part.length;
+		}
+		int[] instruction = new int[length];
+		instruction[0] = op;
+		int pc = 1;
+		for (int[] part : parts) {
+			System.arraycopy(part, 0, instruction, pc, part.length);
+			pc += part.length;
+		}
+		return instruction;
+	}
+
+}
@@ -0,0 +1,132 @@
+package sml;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SuperinstructionsTest {
+
+	private static final int REGISTERS = 32;
+
+	private Program program;
+	private ExecutionProfile profile;
+
+	@Before
+	public void setup() {
+		program = new Translator("code.sml").translate();
+		profile = new ExecutionProfile();
+		Machine m = new Machine();
+		m.setProgram(program);
+		m.setProfile(profile);
+		m.setOutput(new NullOutputSink());
+		m.execute();
+	}
+
+	@Test
+	public void countFactorialSequences() {
+		assertEquals(Long.valueOf(5), profile.getSequenceCounts().get("mul sub bnz"));
+		assertEquals(Long.valueOf(5), profile.getSequenceCounts().get("sub bnz"));
+		assertEquals(Long.valueOf(1), profile.getSequenceCounts().get("lin lin lin"));
+		// the loop starts at the mul, which the lin before it does not always
+		// lead to
+		assertEquals(null, profile.getSequenceCounts().get("lin mul"));
+		assertEquals(null, profile.getSequenceCounts().get("bnz out"));
+	}
+
+	@Test
+	public void fuseFactorialLoop() {
+		Bytecode code = program.getFusedBytecode(REGISTERS, profile);
+		// lin, lin, lin, the whole loop and out
+		assertEquals(5, code.size());
+		assertEquals(Bytecode.ARITH2_BNZ, code.getCode()[code.offsetOf(3)]);
+		assertEquals(3, code.targetOf(3));
+		assertSame(code, program.getFusedBytecode(REGISTERS, profile));
+
+		Machine m = new Machine();
+		m.setProgram(program);
+		m.setEngine(Engine.BYTECODE);
+		m.setFusionProfile(profile);
+		m.setOutput(new NullOutputSink());
+		m.execute();
+		assertEquals(720, m.getRegisters().getRegister(21));
+		assertEquals(1, m.getRegisters().getRegister(20));
+	}
+
+	@Test
+	public void rejectFusedCode() {
+		Bytecode code = program.getFusedBytecode(REGISTERS, profile);
+		assertTrue(code.hasSuperinstructions());
+		assertSame(code, Optimizer.optimize(code));
+		assertNull(JvmCompiler.compile(code));
+		assertNull(JvmCompiler.compile(code));
+	}
+
+	@Test
+	public void leaveUnprofiledProgram() {
+		Bytecode code = program.getBytecode(REGISTERS);
+		assertSame(code, Superinstructions.fuse(code, new ExecutionProfile()));
+	}
+
+	@Test
+	public void fuseRandomProgramsWithoutChangingThem() {
+		Random random = new Random(17);
+		for (int n = 0; n != 500; n++) {
+			List<Instruction> instructions = RegisterAllocationTest.randomProgram(random);
+			Labels labels = new Labels();
+			for (Instruction instruction : instructions) {
+				labels.addLabel(instruction.label);
+			}
+			Program program = new Program("random", instructions, labels);
+			int[] initial = new int[REGISTERS];
+			for (int r = 0; r != REGISTERS; r++) {
+				initial[r] = random.nextInt(7) - 2;
+			}
+
+			ExecutionProfile profile = new ExecutionProfile();
+			Machine m = new Machine();
+			m.setProgram(program);
+			m.setProfile(profile);
+			m.setOutput(new NullOutputSink());
+			try {
+				m.execute(initial);
+			} catch (ArithmeticException e) {
+				// the profile still counts the run
+			}
+
+			Bytecode code = program.getBytecode(REGISTERS);
+			Bytecode fused = Superinstructions.fuse(code, profile);
+			int[] expected = initial.clone();
+			CollectingOutputSink expectedOutput = new CollectingOutputSink();
+			boolean expectedFailure = run(code, expected, expectedOutput);
+			int[] actual = initial.clone();
+			CollectingOutputSink actualOutput = new CollectingOutputSink();
+			boolean actualFailure = run(fused, actual, actualOutput);
+
+			String description = code + "fused to\n" + fused;
+			assertEquals(description, expectedFailure, actualFailure);
+			assertArrayEquals(description, expected, actual);
+			assertEquals(description, expectedOutput.toString(), actualOutput.toString());
+		}
+	}
+
+	// Run code on r, returning whether it throws an ArithmeticException.
+
+	private static boolean run(Bytecode code, int[] r, OutputSink output) {
+		try {
+			code.execute(r, output);
+			return false;
+		} catch (ArithmeticException e) {
+			return true;
+		}
+	}
+
+}
@@ -1,222 +1,576 @@
 package sml;
 
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /*
  * The translator of a <b>S</b><b>M</b><b>L</b> program.
  */
 public class Translator {
 
-	// word + line is the part of the current line that's not yet processed
-	// word has no whitespace
-	// If word and line are not empty, line begins with whitespace
-	private String line = "";
 	private Labels labels; // The labels of the program being translated
-	private ArrayList<Instruction> program; // The program to be created
-	private String fileName; // source file of SML code
+	private List<Instruction> program; // The program to be created
+	private Path path; // source file of SML code, or
+	private InputStream in; // stream of SML code (not closed by the translator)
+	private Operands operands = new Operands(); // reused for each instruction
+	private ForkJoinPool pool; // translate in parallel on pool unless null
+	private boolean mapped = true; // whether a source file is memory-mapped rather than read
+	private int registerCount = Registers.NUMBEROFREGISTERS; // of the machine to run on
+	private long[] lineHashes; // of the source last translated by retranslate
+	private Program translated; // the program retranslate last returned
 
 	private static final String SRC = "src";
 
+	// Sources are split into chunks of at least this many bytes when
+	// translated in parallel
+
+	private static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+	// A translator for the named file in the SRC directory
+
 	public Translator(String fileName) {
-		this.fileName = SRC + "/" + fileName;
+		this(Paths.get(SRC, fileName));
 	}
 
-	// translate the small program in the file into lab (the labels) and
-	// prog (the program)
-	// return "no errors were detected"
-	public boolean readAndTranslate(Labels lab, ArrayList<Instruction> prog) {
+	// A translator for the file at path
 
-		try (Scanner sc = new Scanner(new File(fileName))) {
-			// Scanner attached to the file chosen by the user
-			labels = lab;
-			labels.reset();
-			program = prog;
-			program.clear();
+	public Translator(Path path) {
+		this.path = path;
+	}
 
-			int lineNumber = 1;
-			// Each iteration processes line and reads the next line into line
-			while (sc.hasNextLine()) {
+	// A translator for the program read from in
 
-				line = sc.nextLine();
+	public Translator(InputStream in) {
+		this.in = in;
+	}
 
-				// Store the label in label
-				String label = scan();
+	// Translate the source in parallel on pool, or sequentially if pool is
+	// null. Errors are reported exactly as for a sequential translation.
 
-				if (label.length() == 0) {
-					System.err.format("Error whilst reading program: Missing or invalid label at line %d\n", lineNumber);
-					return false;
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	// Memory-map the source file if mapped is true, as by default, or read
+	// it into memory if not. A mapped file that is truncated while it is
+	// being translated fails the translation with an Error rather than an
+	// IOException, so sources that may be rewritten at any time are read.
+
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+	}
+
+	// Translate for a machine with registerCount registers, so that any
+	// other register number is reported as an error.
+
+	public void setRegisterCount(int registerCount) {
+		this.registerCount = registerCount;
+		this.lineHashes = null;
+		this.translated = null;
+	}
+
+	// translate the program into an immutable Program
+	// return the Program, or null if errors were detected
+	public Program translate() {
+
+		Labels lab = new Labels();
+		ArrayList<Instruction> prog = new ArrayList<>();
+		if (!readAndTranslate(lab, prog)) {
+			return null;
+		}
+		return new Program(path != null ? path.toString() : "stream", prog.toArray(new Instruction[prog.size()]), lab);
+
+	}
+
+	// translate the program into an immutable Program as translate does, but
+	// only parse the lines between the first and last that differ from the
+	// source of the program this method last returned; the lines before and
+	// after them are taken from that program, and only the branches that
+	// are new or whose target may have moved are resolved again. Each call
+	// reads the source again and the first parses every line. Lines are
+	// compared by a 64-bit hash of their bytes.
+	// return the Program, or null if errors were detected (the next call is
+	// then compared with the last program returned)
+	public Program retranslate() {
+
+		ByteBuffer source;
+		long[] hashes;
+		try {
+			source = readSource();
+			hashes = hashLines(source);
+		} catch (IOException ioE) {
+			System.err.format("Error reading program: IO error %s.\n", ioE.getMessage());
+			return null;
+		}
+
+		long[] previous = lineHashes != null ? lineHashes : new long[0];
+		int count = hashes.length;
+		int common = Math.min(count, previous.length);
+		int prefix = 0;
+		while (prefix < common && hashes[prefix] == previous[prefix]) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < common - prefix && hashes[count - 1 - suffix] == previous[previous.length - 1 - suffix]) {
+			suffix++;
+		}
+		int changed = count - suffix; // end of the lines to parse
+		int shift = count - previous.length; // of the lines after them
+
+		labels = new Labels();
+		Instruction[] instructions = new Instruction[count];
+		try {
+
+			SourceReader reader = new SourceReader(source);
+			for (int i = 0; i != count; i++) {
+				reader.nextLine();
+				if (i >= prefix && i < changed) {
+					instructions[i] = translateLine(reader, i + 1);
+					if (instructions[i] == null) {
+						return null;
+					}
+				} else {
+					instructions[i] = translated.getInstructions().get(i < prefix ? i : i - shift);
+					if (!isNewLabel(instructions[i].label, i + 1)) {
+						return null;
+					}
+					labels.addLabel(instructions[i].label);
 				}
+			}
 
-				int existingIndex = labels.indexOf(label);
-				if (existingIndex != -1) {
-					System.err.format("Error whilst reading program: Duplicate label '%s' at lines %d and %d.\n", label, existingIndex + 1, lineNumber);
-					return false;
+		} catch (IOException ioE) {
+
+			System.err.format("Error reading program: IO error %s.\n", ioE.getMessage());
+			return null;
+
+		}
+
+		for (int i = 0; i != count; i++) {
+			if (instructions[i] instanceof BnzInstruction) {
+				BnzInstruction bnz = (BnzInstruction) instructions[i];
+				// a kept branch to a kept line before the changes still has
+				// the right target
+				if (i >= prefix && i < changed || bnz.getTarget() >= prefix) {
+					instructions[i] = resolve(bnz, i + 1);
+					if (instructions[i] == null) {
+						return null;
+					}
 				}
+			}
+		}
+
+		translated = new Program(path != null ? path.toString() : "stream", instructions, labels);
+		lineHashes = hashes;
+		return translated;
+
+	}
+
+	// = the hash (as given by SourceReader.lineHash) of each line of source
+	private static long[] hashLines(ByteBuffer source) throws IOException {
 
-				Instruction ins = getInstruction(label);
+		SourceReader reader = new SourceReader(source);
+		long[] hashes = new long[1024];
+		int count = 0;
+		while (reader.nextLine()) {
+			if (count == hashes.length) {
+				hashes = Arrays.copyOf(hashes, 2 * count);
+			}
+			hashes[count++] = reader.lineHash();
+		}
+		return Arrays.copyOf(hashes, count);
+
+	}
+
+	// translate the program and write it to file as an ObjectFile
+	// return "no errors were detected"
+	public boolean translateTo(Path file) {
+
+		Program program = translate();
+		return program != null && ObjectFile.write(program, file);
+
+	}
+
+	// translate the small program in the file into lab (the labels) and
+	// prog (the program)
+	// return "no errors were detected"
+	public boolean readAndTranslate(Labels lab, List<Instruction> prog) {
+
+		labels = lab;
+		labels.reset();
+		program = prog;
+		program.clear();
+
+		if (pool != null) {
+			return readAndTranslateInParallel();
+		}
+
+		SourceReader source = null;
+		try {
+
+			source = path != null ? SourceReader.open(path) : new SourceReader(in);
+
+			int lineNumber = 1;
+			// Each iteration processes one line of the source
+			while (source.nextLine()) {
+
+				Instruction ins = translateLine(source, lineNumber);
 				if (ins == null) {
 					return false;
 				}
-
-				labels.addLabel(label);
 				program.add(ins);
 
 				lineNumber++;
 
 			}
-			
+
+		} catch (IOException ioE) {
+
+			System.err.format("Error reading program: IO error %s.\n", ioE.getMessage());
+			return false;
+
+		} finally {
+
+			closeSource(source);
+
+		}
+
+		return resolveLabels();
+
+	}
+
+	// Translate the current line of source, which is line lineNumber of
+	// the program, and add its label to labels.
+	// return the instruction, or null if errors were detected
+	private Instruction translateLine(SourceReader source, int lineNumber) {
+
+		// Store the label in label
+		String label = source.nextWord();
+
+		if (label.length() == 0) {
+			System.err.format("Error whilst reading program: Missing or invalid label at line %d\n", lineNumber);
+			return null;
+		}
+
+		if (!isNewLabel(label, lineNumber)) {
+			return null;
+		}
+
+		Instruction ins = getInstruction(source, label, lineNumber);
+		if (ins == null) {
+			return null;
+		}
+
+		if (!ins.hasValidRegisters(registerCount)) {
+			System.err.format("Error whilst reading program: Invalid register at line %d (registers are 0 to %d)\n", lineNumber, registerCount - 1);
+			return null;
+		}
+
+		labels.addLabel(label);
+		return ins;
+
+	}
+
+	// return "label, on line lineNumber, is not already in labels"
+	private boolean isNewLabel(String label, int lineNumber) {
+
+		int existingIndex = labels.indexOf(label);
+		if (existingIndex != -1) {
+			System.err.format("Error whilst reading program: Duplicate label '%s' at lines %d and %d.\n", label, existingIndex + 1, lineNumber);
+			return false;
+		}
+		return true;
+
+	}
+
+	// Translate the whole source as chunks of lines on pool, then add their
+	// labels and instructions to labels and program in order. A chunk stops
+	// at its first line that does not translate; that line and the rest of
+	// its chunk are then translated again sequentially to report the error.
+	private boolean readAndTranslateInParallel() {
+
+		ByteBuffer source;
+		try {
+			source = readSource();
+		} catch (IOException ioE) {
+			System.err.format("Error reading program: IO error %s.\n", ioE.getMessage());
+			return false;
+		}
+
+		List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+		for (ByteBuffer slice : split(source, 4 * pool.getParallelism())) {
+			tasks.add(pool.submit(new Chunk(slice, registerCount)));
+		}
+
+		try {
+
+			int lineNumber = 1;
+			for (ForkJoinTask<Chunk> task : tasks) {
+				Chunk chunk = task.join();
+				for (int i = 0; i != chunk.count; i++) {
+					if (!isNewLabel(chunk.labels[i], lineNumber)) {
+						return false;
+					}
+					labels.addLabel(chunk.labels[i]);
+					program.add(chunk.instructions[i]);
+					lineNumber++;
+				}
+				if (chunk.failed) {
+					SourceReader rest = new SourceReader(chunk.source);
+					for (int i = 0; i != chunk.count; i++) {
+						rest.nextLine();
+					}
+					while (rest.nextLine()) {
+						Instruction ins = translateLine(rest, lineNumber);
+						if (ins == null) {
+							return false;
+						}
+						program.add(ins);
+						lineNumber++;
+					}
+				}
+			}
+
 		} catch (IOException ioE) {
 
 			System.err.format("Error reading program: IO error %s.\n", ioE.getMessage());
 			return false;
 
+		} finally {
+
+			for (ForkJoinTask<Chunk> task : tasks) {
+				task.cancel(false);
+			}
+
+		}
+
+		return resolveLabels();
+
+	}
+
+	// = the whole source, memory-mapped if it is a file and mapped is true
+	private ByteBuffer readSource() throws IOException {
+
+		if (path != null && !mapped) {
+			return ByteBuffer.wrap(Files.readAllBytes(path));
+		}
+		if (path != null) {
+			try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+				if (file.size() > Integer.MAX_VALUE) {
+					throw new IOException("File too large to map in one piece");
+				}
+				return file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+			bytes.write(buffer, 0, read);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+
+	}
+
+	// = source divided into about chunks slices, each ending at the end of
+	// a line
+	private static List<ByteBuffer> split(ByteBuffer source, int chunks) {
+
+		List<ByteBuffer> slices = new ArrayList<>();
+		int size = source.limit();
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, size / chunks + 1);
+		int start = 0;
+		while (start < size) {
+			int end = Math.min(size, start + chunkSize);
+			while (end < size && source.get(end - 1) != '\n' && source.get(end - 1) != '\r') {
+				end++;
+			}
+			if (end < size && source.get(end - 1) == '\r' && source.get(end) == '\n') {
+				end++;
+			}
+			ByteBuffer slice = source.duplicate();
+			slice.position(start);
+			slice.limit(end);
+			slices.add(slice.slice());
+			start = end;
+		}
+		return slices;
+
+	}
+
+	/*
+	 * The translation of a slice of the source, which stops at the first
+	 * line that has no label or whose instruction cannot be created or uses
+	 * an invalid register.
+	 * Duplicate labels are only detected when the chunks are combined.
+	 */
+	private static class Chunk implements Callable<Chunk> {
+
+		private final ByteBuffer source;
+		private final int registerCount;
+		private String[] labels = new String[1024];
+		private Instruction[] instructions = new Instruction[1024];
+		private int count;
+		private boolean failed;
+
+		Chunk(ByteBuffer source, int registerCount) {
+			this.source = source;
+			this.registerCount = registerCount;
+		}
+
+		@Override
+		public Chunk call() throws IOException {
+			SourceReader reader = new SourceReader(source);
+			Operands operands = new Operands();
+			while (reader.nextLine()) {
+				String label = reader.nextWord();
+				InstructionFactory factory = label.length() == 0 ? null : InstructionSet.get(reader.nextSymbol());
+				Instruction ins = null;
+				if (factory != null) {
+					operands.clear();
+					reader.readOperands(operands);
+					try {
+						ins = factory.create(label, operands);
+					} catch (IllegalArgumentException e) {
+						// reported when the line is translated again
+					}
+				}
+				if (ins == null || !ins.hasValidRegisters(registerCount)) {
+					failed = true;
+					break;
+				}
+				if (count == labels.length) {
+					labels = Arrays.copyOf(labels, 2 * count);
+					instructions = Arrays.copyOf(instructions, 2 * count);
+				}
+				labels[count] = label;
+				instructions[count] = ins;
+				count++;
+			}
+			return this;
+		}
+	}
+
+	// Bind every branch in program to the index of its target label so that
+	// no label lookups are needed during execution.
+	// return "all branch labels were defined"
+	private boolean resolveLabels() {
+
+		for (int i = 0; i != program.size(); i++) {
+			Instruction ins = program.get(i);
+			if (ins instanceof BnzInstruction) {
+				BnzInstruction resolved = resolve((BnzInstruction) ins, i + 1);
+				if (resolved == null) {
+					return false;
+				}
+				program.set(i, resolved);
+			}
 		}
 
 		return true;
 
 	}
 
-	// line should consist of an MML instruction, with its label already
-	// removed. Translate line into an instruction with label label
+	// = bnz, which is on line lineNumber, bound to its target in labels, or
+	// null if the target is not defined
+	private BnzInstruction resolve(BnzInstruction bnz, int lineNumber) {
+
+		BnzInstruction resolved = bnz.resolve(labels);
+		if (resolved == null) {
+			System.err.format("Error whilst reading program: Unresolved label '%s' at line %d.\n", bnz.getBranchLabel(), lineNumber);
+		}
+		return resolved;
+
+	}
+
+	// The rest of the current line of source should consist of an SML
+	// instruction. Translate it into an instruction with label label
 	// and return the instruction
-	public Instruction getInstruction(String label) {
+	private Instruction getInstruction(SourceReader source, String label, int lineNumber) {
 
-		if (line.equals(""))
+		String instructionName = source.nextSymbol();
+		if (instructionName.length() == 0) {
+			System.err.format("Error whilst reading program: Missing instruction at line %d\n", lineNumber);
 			return null;
+		}
 
-		String instructionName = scan();
-		String[] instructionParams = line.trim().split("\\s");
-		return createInstruction(instructionName, label, instructionParams);
+		operands.clear();
+		source.readOperands(operands);
+		return createInstruction(instructionName, label, operands);
+
+	}
+
+	// Close source unless it reads a stream supplied by the caller.
+	private void closeSource(SourceReader source) {
+
+		if (source == null || in != null) {
+			return;
+		}
+		try {
+			source.close();
+		} catch (IOException ioE) {
+			System.err.format("Error reading program: IO error %s.\n", ioE.getMessage());
+		}
 
 	}
 
 	/*
-	 * Create an Instruction via reflection. Returns a valid
+	 * Create an Instruction from its source parts. Returns a valid
 	 * <code>Instruction</code> object or <code>null</code> if errors are
 	 * encountered. Any errors are reported to the standard error output stream.
 	 */
 	private static Instruction createInstruction(String ins, String label, String[] params) {
-		
-		// Base errorMessage
-		String errorMessage = String.format("Error whilst creating instruction '%s' with label '%s'", ins, label);
+		return createInstruction(ins, label, Operands.of(params));
+	}
+
+	/*
+	 * Create an Instruction using the factory registered for its opcode in
+	 * InstructionSet.
+	 */
+	private static Instruction createInstruction(String ins, String label, Operands operands) {
 
 		// We must have a viable instruction name passed in.
 		if (ins == null || ins.length() < 2) {
-			System.err.println(String.format("%s: %s.", errorMessage, "Invalid instruction name"));
+			reportInstructionError(ins, label, "Invalid instruction name");
 			return null;
 		}
-		
-		// We need to derive an Instruction class name based on the accepted naming convention.
-		String className = new StringBuilder()
-			.append(Instruction.class.getPackage().getName())
-			.append(".")
-			.append(ins.substring(0, 1).toUpperCase())
-			.append(ins.substring(1))
-			.append("Instruction").toString();
-		
-		// Get the typed parameters
-		Object[] typedParameters = getCoercedParameters(label, params);
-		// Get the classes of the typed parameters.
-		Class<?>[] paramTypes = new Class[typedParameters.length];
-		for (int i = 0; i < typedParameters.length; i++) {
-			paramTypes[i] = getType(typedParameters[i]);
-		}
-		
+
+		InstructionFactory factory = InstructionSet.get(ins);
+		if (factory == null) {
+			reportInstructionError(ins, label, "Unknown instruction");
+			return null;
+		}
+
 		try {
-			
-			// Get the class for the specified instruction.
-			Class<?> instructionClass = Class.forName(className);
-			
-			// If it inherits from Instruction then try to create it.
-			if (instructionClass.getSuperclass().equals(Instruction.class)) {
-				// Find the correct constructor.
-				Constructor<?> instructionConstructor = instructionClass.getDeclaredConstructor(paramTypes);
-				// Create an instance using the constructor.
-				Object newInstruction = instructionConstructor.newInstance(typedParameters);
-				// Return the created instruction
-				return (Instruction) newInstruction;
+
+			Instruction instruction = factory.create(label, operands);
+			if (instruction == null) {
+				reportInstructionError(ins, label, "Invalid parameter number or types");
 			}
-			
-		} catch (ClassNotFoundException e) {
-			
-			System.err.println(String.format("%s: %s.", errorMessage, "Unknown instruction"));
-			
-		} catch (NoSuchMethodException e) {
-			
-			System.err.println(String.format("%s: %s.", errorMessage, "Invalid parameter number or types"));
-			
+			return instruction;
+
 		} catch (IllegalArgumentException e) {
-			
-			System.err.println(String.format("%s: %s.", errorMessage, e.getMessage()));
-			
-		} catch (InvocationTargetException e) {
-			
-			System.err.println(String.format("%s: %s.", errorMessage, e.getTargetException().getMessage()));
-			
-		} catch (ReflectiveOperationException e) {
-			
-			System.err.println(String.format("%s: %s.", errorMessage, e.getMessage()));
-		}
-		
-		return null;
-
-	}
-	
-	/*
-	 * Return the first word of line and remove it from line. If there is no
-	 * word, return ""
-	 */
-	private String scan() {
-		
-		line = line.trim();
-		if (line.length() == 0)
-			return "";
 
-		int i = 0;
-		while (i < line.length() && line.charAt(i) != ' ' && line.charAt(i) != '\t') {
-			i = i + 1;
-		}
-		
-		String word = line.substring(0, i);
-		line = line.substring(i);
-		return word;
-	}
+			reportInstructionError(ins, label, e.getMessage());
+			return null;
 
-	/*
-	 * Parse all remaining tokens of line and attempt to coerce any that can be 
-	 * into Integers. Any that can not will be left as Strings. Returns an 
-	 * array of coerced parameters the first one being the label passed in.
-	 */
-	private static Object[] getCoercedParameters(String label, String[] tokens) {
-		// If there are no tokens just return the label.
-		if (tokens == null) return new Object[] {label};
-		
-		// Otherwise return a an array of params starting with the label.
-		Object params[] = new Object[tokens.length + 1];
-		params[0] = label;
-		for (int i = 0; i < tokens.length; i++) {
-			String stringParam = tokens[i];
-			Integer integerParam;
-			try {
-				integerParam = Integer.parseInt(stringParam);
-				params[i + 1] = integerParam;
-			} catch (NumberFormatException e) {
-				params[i + 1] = stringParam;
-			}
 		}
-		return params;
+
 	}
-	
-	/*
-	 * A bit like getClass but treats Integers as ints. 
-	 */
-	private static Class<?> getType(Object obj) {
-		return obj.getClass().equals(Integer.class) ? Integer.TYPE : obj.getClass();
+
+	private static void reportInstructionError(String ins, String label, String reason) {
+		System.err.format("Error whilst creating instruction '%s' with label '%s': %s.%n", ins, label, reason);
 	}
-	
+
 }
\ No newline at end of file
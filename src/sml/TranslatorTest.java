@@ -1,13 +1,30 @@
 package sml;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.ObjectName;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -33,6 +50,329 @@ public class TranslatorTest {
 		assertEquals(720, m.getRegisters().getRegister(21));
 	}
 
+	@Test
+	public void succeedFactorialWithBytecode() {
+		Translator t = new Translator("code.sml");
+		Machine m = new Machine();
+		m.setEngine(Engine.BYTECODE);
+		assertTrue(t.readAndTranslate(m.getLabels(), m.getProg()));
+		m.execute();
+		assertEquals(720, m.getRegisters().getRegister(21));
+		assertEquals(1, m.getRegisters().getRegister(20));
+	}
+
+	@Test
+	public void succeedFactorialWithCompiler() {
+		Translator t = new Translator("code.sml");
+		Machine m = new Machine();
+		m.setEngine(Engine.COMPILER);
+		assertTrue(t.readAndTranslate(m.getLabels(), m.getProg()));
+		m.execute();
+		assertEquals(720, m.getRegisters().getRegister(21));
+		assertEquals(1, m.getRegisters().getRegister(20));
+	}
+
+	@Test
+	public void succeedFactorialFromPath() {
+		Translator t = new Translator(Paths.get("src", "code.sml"));
+		Machine m = new Machine();
+		assertTrue(t.readAndTranslate(m.getLabels(), m.getProg()));
+		m.execute();
+		assertEquals(720, m.getRegisters().getRegister(21));
+	}
+
+	@Test
+	public void succeedFactorialFromStream() {
+		String source = "f0 lin 20 6\r\nf1  lin\t21 1\r\nf2 lin 22 +1\rf3 mul 21 21 20\nf4 sub 20 20 22\nf5 bnz 20 f3\nf6 out 21\n";
+		Translator t = new Translator(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+		Machine m = new Machine();
+		assertTrue(t.readAndTranslate(m.getLabels(), m.getProg()));
+		assertEquals(7, m.getProg().size());
+		m.execute();
+		assertEquals(720, m.getRegisters().getRegister(21));
+	}
+
+	@Test
+	public void succeedLargeProgramFromStream() {
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i != 100000; i++) {
+			source.append('l').append(i).append(" lin ").append(i % 32).append(' ').append(i).append('\n');
+		}
+		Translator t = new Translator(new ByteArrayInputStream(source.toString().getBytes(StandardCharsets.UTF_8)));
+		assertTrue(t.readAndTranslate(labels, program));
+		assertEquals(100000, program.size());
+		assertEquals(99999, labels.indexOf("l99999"));
+	}
+
+	@Test
+	public void rejectMissingInstruction() {
+		Translator t = new Translator(new ByteArrayInputStream("f0 lin 20 6\nf1\n".getBytes(StandardCharsets.UTF_8)));
+		assertFalse(t.readAndTranslate(labels, program));
+	}
+
+	@Test
+	public void succeedFactorialInParallel() {
+		Translator t = new Translator("code.sml");
+		t.setPool(ForkJoinPool.commonPool());
+		Machine m = new Machine();
+		assertTrue(t.readAndTranslate(m.getLabels(), m.getProg()));
+		m.execute();
+		assertEquals(720, m.getRegisters().getRegister(21));
+	}
+
+	@Test
+	public void succeedLargeProgramInParallel() {
+		String source = generateProgram(200000, -1, null);
+		Translator t = new Translator(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+		t.setPool(new ForkJoinPool(4));
+		assertTrue(t.readAndTranslate(labels, program));
+		assertEquals(200000, program.size());
+		assertEquals(199999, labels.indexOf("l199999"));
+		assertEquals("l123456: lin register 0 value is 123456", program.get(123456).toString());
+	}
+
+	@Test
+	public void reportSameDuplicateLabelInParallel() {
+		String source = generateProgram(200000, 150000, "l10 lin 1 1");
+		String sequential = translationErrors(source, null);
+		assertEquals(sequential, translationErrors(source, new ForkJoinPool(4)));
+		assertTrue(sequential.contains("Duplicate label 'l10' at lines 11 and 150001"));
+	}
+
+	@Test
+	public void reportSameInstructionErrorInParallel() {
+		String source = generateProgram(200000, 150000, "l150000 lin 1 f0");
+		String sequential = translationErrors(source, null);
+		assertEquals(sequential, translationErrors(source, new ForkJoinPool(4)));
+		assertTrue(sequential.contains("'lin' with label 'l150000'"));
+	}
+
+	@Test
+	public void reportSameInvalidRegisterInParallel() {
+		String source = generateProgram(200000, 150000, "l150000 lin 32 1");
+		String sequential = translationErrors(source, null);
+		assertEquals(sequential, translationErrors(source, new ForkJoinPool(4)));
+		assertTrue(sequential.contains("Invalid register at line 150001"));
+	}
+
+	@Test
+	public void retranslateOnlyChangedLines() throws IOException {
+		Path file = Files.createTempFile("sml", ".sml");
+		try {
+			String factorial = "f0 lin 20 6\nf1 lin 21 1\nf2 lin 22 1\nf3 mul 21 21 20\nf4 sub 20 20 22\nf5 bnz 20 f3\nf6 out 21\n";
+			Files.write(file, factorial.getBytes(StandardCharsets.UTF_8));
+			Translator t = new Translator(file);
+			Program first = t.retranslate();
+			assertNotNull(first);
+
+			Files.write(file, factorial.replace("f1 lin 21 1", "f1 lin 21 2").getBytes(StandardCharsets.UTF_8));
+			Program second = t.retranslate();
+			assertSame(first.getInstructions().get(0), second.getInstructions().get(0));
+			assertNotSame(first.getInstructions().get(1), second.getInstructions().get(1));
+			assertSame(first.getInstructions().get(6), second.getInstructions().get(6));
+			Machine m = new Machine();
+			m.setProgram(second);
+			m.setOutput(new NullOutputSink());
+			m.execute();
+			assertEquals(1440, m.getRegisters().getRegister(21));
+
+			// a duplicate label is reported and the next translation is
+			// compared with the last good one
+			Files.write(file, factorial.replace("f4 sub", "f3 sub").getBytes(StandardCharsets.UTF_8));
+			assertNull(t.retranslate());
+			Files.write(file, factorial.replace("f4 sub 20 20 22", "f4 sub 20 20 22\nf7 out 20").getBytes(StandardCharsets.UTF_8));
+			Program third = t.retranslate();
+			assertEquals(8, third.size());
+			assertSame(second.getInstructions().get(6), third.getInstructions().get(7));
+			assertEquals(3, ((BnzInstruction) third.getInstructions().get(6)).getTarget());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void retranslateLikeTranslate() throws IOException {
+		Random random = new Random(5);
+		Path file = Files.createTempFile("sml", ".sml");
+		try {
+			// branches only go to the anchor lines a0 to a9, which stay
+			List<String> lines = new ArrayList<>();
+			for (int i = 0; i != 10; i++) {
+				lines.add("a" + i + " lin 1 " + i);
+			}
+			Translator t = new Translator(file);
+			int next = 0;
+			for (int edit = 0; edit != 300; edit++) {
+				int at = random.nextInt(lines.size() + 1);
+				boolean anchor = at < lines.size() && lines.get(at).startsWith("a");
+				String line = random.nextBoolean() ? "x" + next++ + " lin " + random.nextInt(32) + " " + edit
+						: "x" + next++ + " bnz " + random.nextInt(32) + " a" + random.nextInt(10);
+				switch (random.nextInt(3)) {
+				case 0:
+					lines.add(at, line);
+					break;
+				case 1:
+					if (!anchor && at < lines.size()) {
+						lines.remove(at);
+					}
+					break;
+				default:
+					if (!anchor && at < lines.size()) {
+						lines.set(at, line);
+					}
+				}
+				Files.write(file, lines, StandardCharsets.UTF_8);
+				Program expected = new Translator(file).translate();
+				Program actual = t.retranslate();
+				assertEquals(expected.toString(), actual.toString());
+				assertArrayEquals(expected.getBytecode(32).getCode(), actual.getBytecode(32).getCode());
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void acceptRegistersOfLargerMachine() {
+		Translator t = new Translator(new ByteArrayInputStream("f0 lin 40 1\n".getBytes(StandardCharsets.UTF_8)));
+		t.setRegisterCount(64);
+		assertTrue(t.readAndTranslate(labels, program));
+	}
+
+	@Test
+	public void runOnMachineWithMoreRegisters() {
+		Translator t = new Translator(new ByteArrayInputStream("f0 lin 999 7\n".getBytes(StandardCharsets.UTF_8)));
+		t.setRegisterCount(1000);
+		Machine m = new Machine();
+		m.setRegisterCount(1000);
+		assertTrue(t.readAndTranslate(m.getLabels(), m.getProg()));
+		m.execute();
+		assertEquals(1000, m.getRegisters().size());
+		assertEquals(7, m.getRegisters().getRegister(999));
+	}
+
+	@Test
+	public void profileFactorial() {
+		Machine m = new Machine();
+		m.setOutput(new NullOutputSink());
+		m.setProfile(new ExecutionProfile());
+		m.setEngine(Engine.COMPILER);
+		assertTrue(new Translator("code.sml").readAndTranslate(m.getLabels(), m.getProg()));
+		m.execute();
+		m.execute();
+		ExecutionProfile profile = m.getProfile();
+		assertEquals(720, m.getRegisters().getRegister(21));
+		assertEquals(2, profile.getRuns());
+		// the loop f3 to f5 runs 5 times, branching back 4 of them
+		assertEquals(2 * (4 + 3 * 5), profile.getInstructionCount());
+		assertEquals(Long.valueOf(10), profile.getOpcodeCounts().get("mul"));
+		assertEquals(Long.valueOf(10), profile.getLabelCounts().get("f4"));
+		assertEquals(8, profile.getTaken(5));
+		assertEquals(2, profile.getNotTaken(5));
+		assertEquals(0.8, profile.getBranchRatios().get("f5"), 1e-9);
+	}
+
+	@Test
+	public void readProfileThroughJmx() throws Exception {
+		ExecutionProfile profile = new ExecutionProfile();
+		assertTrue(profile.register("factorial"));
+		try {
+			Machine m = new Machine();
+			m.setOutput(new NullOutputSink());
+			m.setProfile(profile);
+			assertTrue(new Translator("code.sml").readAndTranslate(m.getLabels(), m.getProg()));
+			m.execute();
+			ObjectName name = new ObjectName("sml:type=ExecutionProfile,name=\"factorial\"");
+			assertEquals(19L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "InstructionCount"));
+		} finally {
+			ExecutionProfile.unregister("factorial");
+		}
+	}
+
+	@Test
+	public void bufferOutputUntilProgramEnds() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Machine m = new Machine();
+		m.setOutput(new BufferedOutputSink(bytes, 64));
+		assertTrue(new Translator("code.sml").readAndTranslate(m.getLabels(), m.getProg()));
+		m.getProg().add(new LinInstruction("f7", 1, Integer.MIN_VALUE));
+		for (int i = 8; i != 28; i++) {
+			m.getProg().add(new OutInstruction("f" + i, 1));
+		}
+		m.execute();
+		StringBuilder expected = new StringBuilder("720" + System.lineSeparator());
+		for (int i = 8; i != 28; i++) {
+			expected.append(Integer.MIN_VALUE).append(System.lineSeparator());
+		}
+		assertEquals(expected.toString(), bytes.toString());
+	}
+
+	@Test
+	public void calculateLongFactorial() {
+		// 20! does not fit in an int, so the product is kept in long registers
+		// while the loop counts down in int register 0
+		String source = "f0 lin 0 20\nf1 lin 1 1\nf2 llin 0 20\nf3 llin 1 1\nf4 llin 2 1\n"
+				+ "f5 lmul 2 2 0\nf6 lsub 0 0 1\nf7 sub 0 0 1\nf8 bnz 0 f5\nf9 lout 2\n";
+		for (Engine engine : Engine.values()) {
+			Translator t = new Translator(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+			CollectingOutputSink output = new CollectingOutputSink();
+			Machine m = new Machine();
+			m.setEngine(engine);
+			m.setOutput(output);
+			assertTrue(t.readAndTranslate(m.getLabels(), m.getProg()));
+			m.execute();
+			assertEquals(2432902008176640000L, m.getRegisters().getLongRegister(2));
+			assertEquals(2432902008176640000L, output.getValues()[0]);
+		}
+	}
+
+	@Test
+	public void translateToSharedProgram() {
+		Program p = new Translator("code.sml").translate();
+		assertEquals(7, p.size());
+		assertEquals(3, p.getLabels().indexOf("f3"));
+		for (Engine engine : Engine.values()) {
+			Machine m = new Machine();
+			m.setEngine(engine);
+			m.setProgram(p);
+			m.execute();
+			assertEquals(720, m.getRegisters().getRegister(21));
+		}
+	}
+
+	@Test
+	public void failToTranslateBadProgram() {
+		assertNull(new Translator("duplicate-label.sml").translate());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void failToModifyProgramInstructions() {
+		new Translator("code.sml").translate().getInstructions().clear();
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void failToModifyProgramLabels() {
+		new Translator("code.sml").translate().getLabels().addLabel("f7");
+	}
+
+	@Test
+	public void resolveBranchesWhenCreatingProgram() {
+		labels.addLabel("f0");
+		labels.addLabel("f1");
+		program.add(new LinInstruction("f0", 1, 1));
+		program.add(new BnzInstruction("f1", 1, "f0"));
+		Program p = new Program("branch", program, labels);
+		assertEquals(0, ((BnzInstruction) p.getInstructions().get(1)).getTarget());
+		assertEquals(-1, ((BnzInstruction) program.get(1)).getTarget());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void failToCreateProgramWithUnresolvedLabel() {
+		labels.addLabel("f0");
+		program.add(new BnzInstruction("f0", 1, "f9"));
+		new Program("branch", program, labels);
+	}
+
 	@Test
 	public void succeedEmptyProgram() {
 		Translator t = new Translator("empty.sml");
@@ -48,6 +388,19 @@ public class TranslatorTest {
 		assertFalse(t.readAndTranslate(labels, program));
 	}
 
+	@Test
+	public void rejectUnresolvedLabel() {
+		Translator t = new Translator("unresolved-label.sml");
+		assertFalse(t.readAndTranslate(labels, program));
+	}
+
+	@Test
+	public void resolveBranchTarget() {
+		Translator t = new Translator("code.sml");
+		assertTrue(t.readAndTranslate(labels, program));
+		assertEquals(3, ((BnzInstruction) program.get(5)).getTarget());
+	}
+
 	@Test
 	public void rejectWrongParameterCount() {
 		Translator t = new Translator("wrong-parameter-count.sml");
@@ -97,6 +450,57 @@ public class TranslatorTest {
 		assertNotNull(createInstruction("mul", "f2", new String[] {"1", "2", "3"}));
 	}
 	
+	@Test
+	public void failToCreateInstructionWithOverflowingOperand() {
+		assertNull(createInstruction("lin", "f0", new String[] {"1", "2147483648"}));
+	}
+
+	@Test
+	public void succeedToCreateInstructionWithNegativeOperand() {
+		assertNotNull(createInstruction("lin", "f0", new String[] {"1", "-2147483648"}));
+	}
+
+	@Test
+	public void succeedToLookUpStandardFactories() {
+		for (String opcode : new String[] {"add", "sub", "mul", "div", "out", "lin", "bnz"}) {
+			assertEquals(opcode, InstructionSet.get(opcode).getOpcode());
+		}
+	}
+
+	/*
+	 * A program of count lin instructions, with line number replaced by
+	 * replacement unless it is -1.
+	 */
+	private static String generateProgram(int count, int number, String replacement) {
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i != count; i++) {
+			if (i == number) {
+				source.append(replacement).append('\n');
+			} else {
+				source.append('l').append(i).append(" lin ").append(i % 32).append(' ').append(i).append('\n');
+			}
+		}
+		return source.toString();
+	}
+
+	/*
+	 * Translates source, on pool if it is not null, and returns what was
+	 * written to the standard error output stream.
+	 */
+	private String translationErrors(String source, ForkJoinPool pool) {
+		PrintStream err = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(errors, true));
+		try {
+			Translator t = new Translator(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+			t.setPool(pool);
+			assertFalse(t.readAndTranslate(labels, program));
+		} finally {
+			System.setErr(err);
+		}
+		return errors.toString();
+	}
+
 	/*
 	 * Calls the static Translator.createInstruction() method by first making it non-private.
 	 */